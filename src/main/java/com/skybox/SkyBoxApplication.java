@@ -6,6 +6,7 @@ import com.skybox.spring.ApplicationContextProvider;
 import org.mybatis.spring.annotation.MapperScan;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.web.servlet.MultipartProperties;
 import org.springframework.boot.web.servlet.MultipartConfigFactory;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.DependsOn;
@@ -22,7 +23,7 @@ import javax.servlet.MultipartConfigElement;
  * @Datetime: 2023/11/11 16:11
  * @Author: HuangRongQuan
  * @Email: rongquanhuang01@gmail.com
- * @Description: 启动Spring Boot应用，并配置一些相关的注解和Bean。其中使用了异步方法执行、数据库持久化、定时任务等功能。还配置了文件上传时的临时保存路径。
+ * @Description: 启动Spring Boot应用，并配置一些相关的注解和Bean。其中使用了异步方法执行、数据库持久化、定时任务等功能。还配置了文件上传时的临时保存路径和大小限制。
  */
 
 @EnableAsync // 启用异步调用
@@ -38,10 +39,14 @@ public class SkyBoxApplication {
 
     @Bean
     @DependsOn({"applicationContextProvider"})
-    MultipartConfigElement multipartConfigElement() {
+    MultipartConfigElement multipartConfigElement(MultipartProperties multipartProperties) {
         AppConfig appConfig = (AppConfig) ApplicationContextProvider.getBean("appConfig");
         MultipartConfigFactory factory = new MultipartConfigFactory();
         factory.setLocation(appConfig.getProjectFolder() + Constants.FILE_FOLDER_TEMP);
+        //自定义的配置会替换spring.servlet.multipart.*生成的配置，大小限制需要在这里设置才会生效
+        factory.setMaxFileSize(multipartProperties.getMaxFileSize());
+        factory.setMaxRequestSize(multipartProperties.getMaxRequestSize());
+        factory.setFileSizeThreshold(multipartProperties.getFileSizeThreshold());
         return factory.createMultipartConfig();
     }
 }
@@ -0,0 +1,237 @@
+package com.skybox.component;
+
+import com.skybox.entity.config.AppConfig;
+import com.skybox.utils.ByteBufferPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @Project: SkyBox-BE
+ * @Package: com.skybox.component
+ * @ClassName: AsyncFileSender
+ * @Datetime: 2024/01/23 16:10
+ * @Author: HuangRongQuan
+ * @Email: rongquanhuang01@gmail.com
+ * @Description: 通过Servlet异步处理和WriteListener输出文件，只在连接可写时写入，慢速客户端下载大文件时不占用容器线程；
+ * 需要限速时不等待令牌，而是在等待时间后再继续写入
+ */
+
+@Component
+public class AsyncFileSender {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncFileSender.class);
+
+    @Resource
+    private AppConfig appConfig;
+
+    @Resource
+    private BandwidthLimiter bandwidthLimiter;
+
+    /**
+     * @param request
+     * @param response 已设置好状态码和响应头
+     * @param file
+     * @param start
+     * @param count
+     * @param permit   开始异步输出后由输出结束时关闭
+     * @return boolean
+     * @description 开始异步输出文件的指定范围，返回是否已开始。未开启、文件较小或请求不支持异步处理时返回false，由调用方直接输出
+     */
+    public boolean send(HttpServletRequest request, HttpServletResponse response, File file, long start, long count,
+                        BandwidthLimiter.Permit permit) throws IOException {
+        if (!Boolean.TRUE.equals(appConfig.getDownloadAsyncEnabled()) || count < appConfig.getDownloadAsyncMinSize()
+                || request == null || !request.isAsyncSupported()) {
+            return false;
+        }
+        FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        AsyncContext asyncContext;
+        try {
+            asyncContext = request.startAsync();
+        } catch (IllegalStateException e) {
+            closeChannel(in);
+            throw e;
+        }
+        //慢速客户端下载大文件可能需要很长时间，连接失效时由容器的写超时结束
+        asyncContext.setTimeout(0);
+        FileWriteListener listener = new FileWriteListener(asyncContext, in, start, count, permit);
+        asyncContext.addListener(listener);
+        try {
+            listener.out = response.getOutputStream();
+            listener.out.setWriteListener(listener);
+        } catch (IOException | RuntimeException e) {
+            listener.close();
+            asyncContext.complete();
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * 连接可写时从文件读取一段写入响应，直到连接暂时不可写、需要等待令牌或输出完毕
+     */
+    private class FileWriteListener implements WriteListener, AsyncListener {
+
+        private final AsyncContext asyncContext;
+
+        private final FileChannel in;
+
+        private final BandwidthLimiter.Permit permit;
+
+        // 从缓冲区池中取出，输出结束时归还
+        private final ByteBuffer buffer = ByteBufferPool.acquireHeap();
+
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        private ServletOutputStream out;
+
+        private long position;
+
+        private final long end;
+
+        FileWriteListener(AsyncContext asyncContext, FileChannel in, long start, long count, BandwidthLimiter.Permit permit) {
+            this.asyncContext = asyncContext;
+            this.in = in;
+            this.position = start;
+            this.end = start + count;
+            this.permit = permit;
+        }
+
+        /**
+         * @param
+         * @return void
+         * @description 与close互斥，缓冲区归还后不会再被本次输出使用
+         */
+        @Override
+        public synchronized void onWritePossible() throws IOException {
+            while (!closed.get() && out.isReady()) {
+                if (position >= end) {
+                    asyncContext.complete();
+                    return;
+                }
+                int length = (int) Math.min(buffer.capacity(), end - position);
+                buffer.clear();
+                buffer.limit(length);
+                while (buffer.hasRemaining()) {
+                    if (in.read(buffer, position + buffer.position()) == -1) {
+                        throw new EOFException("文件在输出过程中变小");
+                    }
+                }
+                out.write(buffer.array(), buffer.arrayOffset(), length);
+                position += length;
+                long waitNanos = permit.reserve(length);
+                if (waitNanos > 0) {
+                    //连接仍可写，容器不会再回调，等待后在容器线程中继续
+                    bandwidthLimiter.schedule(this::resume, waitNanos);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @param
+         * @return void
+         * @description 等待令牌后继续写入
+         */
+        private void resume() {
+            if (closed.get()) {
+                return;
+            }
+            try {
+                asyncContext.start(() -> {
+                    try {
+                        onWritePossible();
+                    } catch (Throwable t) {
+                        fail(t);
+                    }
+                });
+            } catch (IllegalStateException e) {
+                //异步处理已经结束
+                close();
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            fail(t);
+        }
+
+        /**
+         * @param t
+         * @return void
+         * @description 输出出错时关闭文件并结束异步处理
+         */
+        private void fail(Throwable t) {
+            //客户端中途断开是常见情况，不记录异常堆栈
+            logger.warn("异步输出文件中断:{}", t.getMessage());
+            close();
+            try {
+                asyncContext.complete();
+            } catch (IllegalStateException e) {
+                //异步处理已经结束
+            }
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            close();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            close();
+            asyncContext.complete();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            close();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+
+        /**
+         * @param
+         * @return void
+         * @description 关闭文件、归还缓冲区并释放用户的传输数，只执行一次
+         */
+        private synchronized void close() {
+            if (closed.compareAndSet(false, true)) {
+                closeChannel(in);
+                ByteBufferPool.release(buffer);
+                permit.close();
+            }
+        }
+    }
+
+    /**
+     * @param in
+     * @return void
+     * @description 关闭文件，关闭时的异常不影响输出结果，只记录日志
+     */
+    private static void closeChannel(FileChannel in) {
+        try {
+            in.close();
+        } catch (IOException e) {
+            logger.warn("关闭文件失败:{}", e.getMessage());
+        }
+    }
+}
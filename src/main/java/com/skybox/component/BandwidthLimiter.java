@@ -0,0 +1,353 @@
+package com.skybox.component;
+
+import com.skybox.entity.config.AppConfig;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.servlet.ServletRequestEvent;
+import javax.servlet.ServletRequestListener;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @Project: SkyBox-BE
+ * @Package: com.skybox.component
+ * @ClassName: BandwidthLimiter
+ * @Datetime: 2024/01/21 16:40
+ * @Author: HuangRongQuan
+ * @Email: rongquanhuang01@gmail.com
+ * @Description: 按令牌桶限制上传和下载的速度，分别按用户、分享链接和整个节点限速，并限制每个用户同时进行的传输数。
+ * 速度和同时传输数上限为0时不限制。交给容器发送的下载在请求销毁时释放许可
+ */
+
+@Component
+public class BandwidthLimiter implements ServletRequestListener {
+
+    // 请求属性：通过分享链接访问时的分享ID，按分享链接限速
+    public static final String SHARE_ATTRIBUTE = BandwidthLimiter.class.getName() + ".shareId";
+
+    // 请求属性：没有登录时按该用户限速，例如通过下载码下载
+    public static final String USER_ATTRIBUTE = BandwidthLimiter.class.getName() + ".userId";
+
+    // 请求属性：交给容器sendfile发送的下载持有的许可，请求销毁时关闭
+    public static final String PERMIT_ATTRIBUTE = BandwidthLimiter.class.getName() + ".permit";
+
+    // 超过该时间未使用的令牌桶会被清除
+    private static final long BUCKET_IDLE_MILLIS = 10 * 60 * 1000L;
+
+    @Resource
+    private AppConfig appConfig;
+
+    private final Map<String, TokenBucket> bucketMap = new ConcurrentHashMap<>();
+
+    private final Map<String, AtomicInteger> transferCountMap = new ConcurrentHashMap<>();
+
+    // 整个节点的令牌桶，不限速时为null
+    private TokenBucket globalBucket;
+
+    private volatile long lastEvictTime = System.currentTimeMillis();
+
+    // 异步传输等待令牌后在该线程中继续，不占用容器线程等待
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void init() {
+        if (appConfig.getQosGlobalRate() > 0) {
+            globalBucket = new TokenBucket(appConfig.getQosGlobalRate());
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "transfer-throttle");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * @param task
+     * @param waitNanos Permit.reserve返回的等待纳秒数
+     * @return void
+     * @description 等待令牌后执行任务，用于异步上传和下载在等待后继续，任务中不能长时间阻塞
+     */
+    public void schedule(Runnable task, long waitNanos) {
+        scheduler.schedule(task, waitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param userId  发起传输的用户，未知时为null
+     * @param admin   是否为管理员，管理员使用单独的速度限制
+     * @param shareId 通过分享链接访问时的分享ID，否则为null
+     * @return Permit
+     * @description 开始一次传输，用户同时进行的传输数已达上限时返回null，传输结束后需关闭返回的对象。不限制同时传输数时不计数
+     */
+    public Permit tryBeginTransfer(String userId, boolean admin, String shareId) {
+        evictIdleBuckets();
+        AtomicInteger transferCount = null;
+        if (userId != null && appConfig.getQosUserMaxTransfers() > 0) {
+            transferCount = acquireTransfer(userId);
+            if (transferCount == null) {
+                return null;
+            }
+        }
+        List<TokenBucket> bucketList = new ArrayList<>();
+        if (globalBucket != null) {
+            bucketList.add(globalBucket);
+        }
+        long userRate = admin ? appConfig.getQosAdminRate() : appConfig.getQosUserRate();
+        if (userId != null && userRate > 0) {
+            bucketList.add(bucketMap.computeIfAbsent("user:" + userId, key -> new TokenBucket(userRate)));
+        }
+        if (shareId != null && appConfig.getQosShareRate() > 0) {
+            bucketList.add(bucketMap.computeIfAbsent("share:" + shareId, key -> new TokenBucket(appConfig.getQosShareRate())));
+        }
+        return new Permit(userId, transferCount, bucketList);
+    }
+
+    /**
+     * @param userId
+     * @return AtomicInteger
+     * @description 增加用户同时进行的传输数，已达上限时返回null。计数的增减和删除都在compute中完成，
+     * 计数只在减到0时删除，持有许可的传输使用的计数一定还在表中
+     */
+    private AtomicInteger acquireTransfer(String userId) {
+        int maxTransfers = appConfig.getQosUserMaxTransfers();
+        AtomicInteger[] acquired = new AtomicInteger[1];
+        transferCountMap.compute(userId, (key, transferCount) -> {
+            if (transferCount == null) {
+                transferCount = new AtomicInteger();
+            }
+            if (transferCount.get() < maxTransfers) {
+                transferCount.incrementAndGet();
+                acquired[0] = transferCount;
+            }
+            return transferCount.get() > 0 ? transferCount : null;
+        });
+        return acquired[0];
+    }
+
+    /**
+     * @param userId
+     * @param transferCount 开始传输时增加的计数
+     * @return void
+     * @description 传输结束，减少用户同时进行的传输数，减到0时删除计数
+     */
+    private void releaseTransfer(String userId, AtomicInteger transferCount) {
+        transferCountMap.compute(userId, (key, currentCount) -> {
+            if (currentCount != transferCount) {
+                return currentCount;
+            }
+            return currentCount.decrementAndGet() > 0 ? currentCount : null;
+        });
+    }
+
+    /**
+     * @param event
+     * @return void
+     * @description 请求处理结束时关闭交给容器sendfile发送的下载持有的许可。Servlet API不提供sendfile完成的回调，
+     * Tomcat在请求销毁后才由内核发送文件，因此这类下载只计入请求处理期间的同时传输数
+     */
+    @Override
+    public void requestDestroyed(ServletRequestEvent event) {
+        Object permit = event.getServletRequest().getAttribute(PERMIT_ATTRIBUTE);
+        if (permit instanceof Permit) {
+            ((Permit) permit).close();
+        }
+    }
+
+    /**
+     * @param
+     * @return void
+     * @description 每分钟最多清理一次长时间未使用的令牌桶
+     */
+    private void evictIdleBuckets() {
+        long now = System.currentTimeMillis();
+        if (now - lastEvictTime < 60 * 1000L) {
+            return;
+        }
+        lastEvictTime = now;
+        bucketMap.values().removeIf(bucket -> now - bucket.lastUsedTime > BUCKET_IDLE_MILLIS);
+    }
+
+    /**
+     * 一次传输持有的许可，读写数据前按字节数从所有相关的令牌桶中取令牌，令牌不足时等待
+     */
+    public class Permit implements Closeable {
+
+        private final String userId;
+
+        // 开始传输时增加的用户传输数，不限制同时传输数时为null
+        private final AtomicInteger transferCount;
+
+        private final List<TokenBucket> bucketList;
+
+        private boolean closed = false;
+
+        private Permit(String userId, AtomicInteger transferCount, List<TokenBucket> bucketList) {
+            this.userId = userId;
+            this.transferCount = transferCount;
+            this.bucketList = bucketList;
+        }
+
+        /**
+         * @param
+         * @return boolean
+         * @description 是否需要限速，不需要限速时可以使用sendfile等不经过应用的传输方式
+         */
+        public boolean isLimited() {
+            return !bucketList.isEmpty();
+        }
+
+        /**
+         * @param bytes
+         * @return long
+         * @description 取出指定字节数的令牌，不等待，返回按最慢的令牌桶需要等待的纳秒数，用于异步传输在等待后继续
+         */
+        public long reserve(int bytes) {
+            long waitNanos = 0;
+            for (TokenBucket bucket : bucketList) {
+                waitNanos = Math.max(waitNanos, bucket.reserve(bytes));
+            }
+            return waitNanos;
+        }
+
+        /**
+         * @param bytes
+         * @return void
+         * @description 取出指定字节数的令牌，令牌不足时按最慢的令牌桶等待
+         */
+        public void acquire(int bytes) throws InterruptedIOException {
+            long waitNanos = reserve(bytes);
+            if (waitNanos <= 0) {
+                return;
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("限速等待被中断");
+            }
+        }
+
+        /**
+         * @param inputStream
+         * @return InputStream
+         * @description 包装输入流，读取数据时限速
+         */
+        public InputStream wrap(InputStream inputStream) {
+            if (!isLimited()) {
+                return inputStream;
+            }
+            return new FilterInputStream(inputStream) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1) {
+                        acquire(1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int count = super.read(b, off, len);
+                    if (count > 0) {
+                        acquire(count);
+                    }
+                    return count;
+                }
+            };
+        }
+
+        /**
+         * @param outputStream
+         * @return OutputStream
+         * @description 包装输出流，写出数据时限速
+         */
+        public OutputStream wrap(OutputStream outputStream) {
+            if (!isLimited()) {
+                return outputStream;
+            }
+            return new FilterOutputStream(outputStream) {
+                @Override
+                public void write(int b) throws IOException {
+                    acquire(1);
+                    out.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    acquire(len);
+                    out.write(b, off, len);
+                }
+            };
+        }
+
+        /**
+         * @param
+         * @return void
+         * @description 传输结束，释放用户的传输数
+         */
+        @Override
+        public synchronized void close() {
+            if (closed || transferCount == null) {
+                return;
+            }
+            closed = true;
+            releaseTransfer(userId, transferCount);
+        }
+    }
+
+    /**
+     * 令牌桶，每秒生成rate个令牌（字节），最多积攒1秒的令牌。令牌可以预支，预支的部分由调用方等待补足
+     */
+    private static class TokenBucket {
+
+        private final long rate;
+
+        private double tokens;
+
+        private long lastRefillNanos;
+
+        private volatile long lastUsedTime;
+
+        TokenBucket(long rate) {
+            this.rate = rate;
+            this.tokens = rate;
+            this.lastRefillNanos = System.nanoTime();
+            this.lastUsedTime = System.currentTimeMillis();
+        }
+
+        /**
+         * @param bytes
+         * @return long
+         * @description 取出令牌并返回需要等待的纳秒数
+         */
+        synchronized long reserve(int bytes) {
+            long now = System.nanoTime();
+            tokens = Math.min(rate, tokens + (now - lastRefillNanos) * rate / 1e9);
+            lastRefillNanos = now;
+            tokens -= bytes;
+            lastUsedTime = System.currentTimeMillis();
+            return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / rate);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.skybox.component;
+
+import com.skybox.entity.config.AppConfig;
+import com.skybox.entity.constants.Constants;
+import com.skybox.entity.dto.DownloadFileDto;
+import com.skybox.utils.JsonUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @Project: SkyBox-BE
+ * @Package: com.skybox.component
+ * @ClassName: DownloadTokenComponent
+ * @Datetime: 2024/01/22 10:15
+ * @Author: HuangRongQuan
+ * @Email: rongquanhuang01@gmail.com
+ * @Description: 生成和校验签名下载链接。链接本身带有文件路径、文件名和过期时间，用定期轮换的密钥签名，
+ * 密钥保存在Redis中供所有节点共享，各节点缓存后在本地校验，下载时不需要访问Redis
+ */
+
+@Component
+public class DownloadTokenComponent {
+
+    private static final Logger logger = LoggerFactory.getLogger(DownloadTokenComponent.class);
+
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    // 签名下载链接的最大长度，打包下载选中的文件过多时改用Redis下载码
+    private static final int MAX_TOKEN_LENGTH = 1024;
+
+    // 下载链接的有效期，与Redis下载码一致
+    private static final long EXPIRE_MILLIS = Constants.REDIS_KEY_EXPIRES_FIVE_MIN * 1000L;
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final SecureRandom secureRandom = new SecureRandom();
+
+    // 本节点已经取得的密钥，键为密钥编号
+    private final Map<Long, byte[]> keyMap = new ConcurrentHashMap<>();
+
+    @Resource
+    private AppConfig appConfig;
+
+    @Resource
+    private RedisComponent redisComponent;
+
+    /**
+     * @param code
+     * @return boolean
+     * @description 判断下载码是否为签名下载链接，Redis下载码只包含字母和数字
+     */
+    public boolean isToken(String code) {
+        return code.indexOf('.') > 0;
+    }
+
+    /**
+     * @param downloadFileDto
+     * @return String
+     * @description 生成签名下载链接，格式为：密钥编号.下载信息.签名。未开启、链接过长或无法取得密钥时返回null，由调用方改用Redis下载码
+     */
+    public String createToken(DownloadFileDto downloadFileDto) {
+        if (!Boolean.TRUE.equals(appConfig.getDownloadTokenEnabled())) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        long keyId = now / getRotateMillis();
+        byte[] key = getKey(keyId, true);
+        if (key == null) {
+            return null;
+        }
+        downloadFileDto.setExpireTime(now + EXPIRE_MILLIS);
+        String content = keyId + "." + ENCODER.encodeToString(JsonUtils.convertObj2Json(downloadFileDto).getBytes(StandardCharsets.UTF_8));
+        String token = content + "." + ENCODER.encodeToString(sign(key, content));
+        return token.length() > MAX_TOKEN_LENGTH ? null : token;
+    }
+
+    /**
+     * @param token
+     * @return DownloadFileDto
+     * @description 校验签名下载链接并取出下载信息，签名不正确、密钥已过期或链接已过期时返回null
+     */
+    public DownloadFileDto parseToken(String token) {
+        String[] parts = token.split("\\.");
+        if (parts.length != 3) {
+            return null;
+        }
+        try {
+            long keyId = Long.parseLong(parts[0]);
+            long now = System.currentTimeMillis();
+            long rotateMillis = getRotateMillis();
+            //只接受有效期内可能用于签名的密钥，允许其他节点的时钟快一个轮换周期
+            if (keyId > now / rotateMillis + 1 || keyId < (now - EXPIRE_MILLIS) / rotateMillis) {
+                return null;
+            }
+            byte[] key = getKey(keyId, false);
+            if (key == null) {
+                return null;
+            }
+            if (!MessageDigest.isEqual(DECODER.decode(parts[2]), sign(key, parts[0] + "." + parts[1]))) {
+                return null;
+            }
+            DownloadFileDto downloadFileDto = JsonUtils.convertJson2Obj(new String(DECODER.decode(parts[1]), StandardCharsets.UTF_8), DownloadFileDto.class);
+            if (downloadFileDto == null || downloadFileDto.getExpireTime() == null || downloadFileDto.getExpireTime() < now) {
+                return null;
+            }
+            return downloadFileDto;
+        } catch (IllegalArgumentException e) {
+            //密钥编号或Base64格式错误
+            return null;
+        }
+    }
+
+    /**
+     * @param keyId
+     * @param create 不存在时是否生成，只有签名当前周期的链接时生成
+     * @return byte[]
+     * @description 取得指定编号的密钥，本节点没有时从Redis读取并缓存，同时清除已经不可能再使用的密钥
+     */
+    private byte[] getKey(long keyId, boolean create) {
+        byte[] key = keyMap.get(keyId);
+        if (key != null) {
+            return key;
+        }
+        long rotateMillis = getRotateMillis();
+        //密钥在签名周期结束后还要用于校验有效期内的链接
+        long expireSeconds = (rotateMillis + EXPIRE_MILLIS) / 1000 * 2;
+        String keyValue;
+        try {
+            if (create) {
+                byte[] newKey = new byte[32];
+                secureRandom.nextBytes(newKey);
+                keyValue = redisComponent.getOrCreateDownloadSignKey(keyId, ENCODER.encodeToString(newKey), expireSeconds);
+            } else {
+                keyValue = redisComponent.getDownloadSignKey(keyId);
+            }
+        } catch (Exception e) {
+            logger.error("获取下载链接密钥失败", e);
+            return null;
+        }
+        if (keyValue == null) {
+            return null;
+        }
+        key = keyValue.getBytes(StandardCharsets.UTF_8);
+        long minKeyId = (System.currentTimeMillis() - EXPIRE_MILLIS) / rotateMillis;
+        keyMap.keySet().removeIf(id -> id < minKeyId);
+        keyMap.put(keyId, key);
+        return key;
+    }
+
+    /**
+     * @param key
+     * @param content
+     * @return byte[]
+     * @description 计算HMAC-SHA256签名
+     */
+    private byte[] sign(byte[] key, String content) {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(new SecretKeySpec(key, HMAC_ALGORITHM));
+            return mac.doFinal(content.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private long getRotateMillis() {
+        return appConfig.getDownloadTokenRotate() * 1000L;
+    }
+}
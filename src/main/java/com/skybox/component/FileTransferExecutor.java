@@ -0,0 +1,191 @@
+package com.skybox.component;
+
+import com.skybox.entity.config.AppConfig;
+import com.skybox.entity.enums.FileTypeEnums;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @Project: SkyBox-BE
+ * @Package: com.skybox.component
+ * @ClassName: FileTransferExecutor
+ * @Datetime: 2024/01/12 20:30
+ * @Author: HuangRongQuan
+ * @Email: rongquanhuang01@gmail.com
+ * @Description: 上传完成后的文件转码线程池，线程数和队列长度有上限，图片和小文件优先于大视频执行
+ */
+
+@Component("fileTransferExecutor")
+public class FileTransferExecutor {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileTransferExecutor.class);
+
+    // 优先级，数值越小越先执行
+    private static final int PRIORITY_IMAGE = 0;
+    private static final int PRIORITY_SMALL_FILE = 1;
+    private static final int PRIORITY_LARGE_FILE = 2;
+    private static final int PRIORITY_VIDEO = 3;
+
+    @Resource
+    private AppConfig appConfig;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    private ThreadPoolExecutor executor;
+
+    // 执行中和排队中的任务总数不超过线程数加队列长度，用于实现有界的优先级队列
+    private Semaphore permits;
+
+    // 提交顺序，优先级和大小相同时先提交的先执行
+    private final AtomicLong sequence = new AtomicLong();
+
+    private Timer waitTimer;
+
+    private Timer runTimer;
+
+    @PostConstruct
+    public void init() {
+        int poolSize = appConfig.getTransferPoolSize();
+        AtomicInteger threadIndex = new AtomicInteger();
+        executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "file-transfer-" + threadIndex.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        permits = new Semaphore(poolSize + appConfig.getTransferQueueCapacity());
+        Gauge.builder("skybox.transfer.queue.size", executor, e -> e.getQueue().size())
+                .description("等待转码的文件数")
+                .register(meterRegistry);
+        Gauge.builder("skybox.transfer.active", executor, ThreadPoolExecutor::getActiveCount)
+                .description("正在转码的文件数")
+                .register(meterRegistry);
+        waitTimer = Timer.builder("skybox.transfer.wait").description("文件在队列中等待转码的时间").register(meterRegistry);
+        runTimer = Timer.builder("skybox.transfer.run").description("文件转码的执行时间").register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        executor.shutdown();
+    }
+
+    /**
+     * @param fileTypeEnum
+     * @param fileSize
+     * @param task
+     * @return void
+     * @description 提交转码任务，队列已满时阻塞等待，等待超时后由当前线程直接执行
+     */
+    public void execute(FileTypeEnums fileTypeEnum, Long fileSize, Runnable task) {
+        TransferTask transferTask = new TransferTask(getPriority(fileTypeEnum, fileSize), fileSize == null ? 0 : fileSize,
+                sequence.incrementAndGet(), task);
+        boolean acquired = false;
+        try {
+            acquired = permits.tryAcquire(appConfig.getTransferQueueOfferTimeout(), TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!acquired) {
+            logger.warn("转码队列已满，由当前线程执行转码");
+            transferTask.run();
+            return;
+        }
+        transferTask.permitAcquired = true;
+        try {
+            executor.execute(transferTask);
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * @param
+     * @return int
+     * @description 获取还可以提交的任务数，提交不超过该数量的任务时不会阻塞
+     */
+    public int getAvailableSlots() {
+        return permits.availablePermits();
+    }
+
+    /**
+     * @param fileTypeEnum
+     * @param fileSize
+     * @return int
+     * @description 图片最先转码，其次是小文件，视频最后
+     */
+    private int getPriority(FileTypeEnums fileTypeEnum, Long fileSize) {
+        if (FileTypeEnums.IMAGE == fileTypeEnum) {
+            return PRIORITY_IMAGE;
+        }
+        if (FileTypeEnums.VIDEO == fileTypeEnum) {
+            return PRIORITY_VIDEO;
+        }
+        if (fileSize != null && fileSize < appConfig.getTransferSmallFileSize()) {
+            return PRIORITY_SMALL_FILE;
+        }
+        return PRIORITY_LARGE_FILE;
+    }
+
+    /**
+     * @description 可排序的转码任务，依次按优先级、文件大小、提交顺序排序
+     */
+    private class TransferTask implements Runnable, Comparable<TransferTask> {
+        private final int priority;
+        private final long fileSize;
+        private final long order;
+        private final Runnable task;
+        private final long submitTime = System.nanoTime();
+        private boolean permitAcquired = false;
+
+        private TransferTask(int priority, long fileSize, long order, Runnable task) {
+            this.priority = priority;
+            this.fileSize = fileSize;
+            this.order = order;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            long startTime = System.nanoTime();
+            waitTimer.record(startTime - submitTime, TimeUnit.NANOSECONDS);
+            try {
+                task.run();
+            } catch (Exception e) {
+                logger.error("文件转码任务执行失败", e);
+            } finally {
+                runTimer.record(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+                if (permitAcquired) {
+                    permits.release();
+                }
+            }
+        }
+
+        @Override
+        public int compareTo(TransferTask other) {
+            if (priority != other.priority) {
+                return Integer.compare(priority, other.priority);
+            }
+            if (fileSize != other.fileSize) {
+                return Long.compare(fileSize, other.fileSize);
+            }
+            return Long.compare(order, other.order);
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package com.skybox.component;
+
+import com.skybox.entity.config.AppConfig;
+import com.skybox.entity.constants.Constants;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @Project: SkyBox-BE
+ * @Package: com.skybox.component
+ * @ClassName: HlsRenditionGenerator
+ * @Datetime: 2024/01/24 15:20
+ * @Author: HuangRongQuan
+ * @Email: rongquanhuang01@gmail.com
+ * @Description: 视频切片完成后，为视频额外生成几个较低清晰度的切片，每生成完一个清晰度就更新主索引文件，
+ * 播放器可以按网速在原画和各清晰度之间切换。重新编码耗时很长，在单独的有界线程池中执行，并使用单独的FFmpeg进程数上限，
+ * 不占用转码线程、转码任务的租约和转码使用的进程数；队列已满时不生成，视频仍可以按原画播放
+ */
+
+@Component
+public class HlsRenditionGenerator {
+
+    private static final Logger logger = LoggerFactory.getLogger(HlsRenditionGenerator.class);
+
+    // 最多额外生成的清晰度数，加上原画共2到4个
+    private static final int MAX_RENDITIONS = 3;
+
+    // 原画索引文件名中的清晰度名称
+    private static final String SOURCE_NAME = "src";
+
+    private static final String M3U8_SUFFIX = ".m3u8";
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final long AUDIO_BITRATE = 128000;
+
+    // 与原画的切片时长一致
+    private static final int SEGMENT_TIME = 30;
+
+    // 发布主索引文件的锁，各清晰度可能同时完成
+    private final Object publishLock = new Object();
+
+    @Resource
+    private AppConfig appConfig;
+
+    @Resource
+    private ProcessRunner processRunner;
+
+    @Resource
+    private SmallFileCache smallFileCache;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    private ThreadPoolExecutor executor;
+
+    // 生成多清晰度切片的FFmpeg进程数上限
+    private Semaphore processPermits;
+
+    @PostConstruct
+    public void init() {
+        int maxConcurrent = appConfig.getHlsAbrMaxConcurrent();
+        AtomicInteger threadIndex = new AtomicInteger();
+        //队列已满时直接拒绝，不能由提交任务的转码线程执行
+        executor = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(appConfig.getHlsAbrQueueCapacity()), runnable -> {
+            Thread thread = new Thread(runnable, "hls-rendition-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.AbortPolicy());
+        processPermits = new Semaphore(maxConcurrent, true);
+        Gauge.builder("skybox.hls.rendition.queue.size", executor, e -> e.getQueue().size())
+                .description("等待生成多清晰度切片的视频数")
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @param fileId        切片名中的文件ID
+     * @param videoFilePath 原视频的绝对路径，切片目录为去掉后缀的同名目录
+     * @return void
+     * @description 提交生成任务后立即返回，不阻塞转码线程。队列已满或线程池已关闭时只记录日志，视频仍可以按原画播放
+     */
+    public void schedule(String fileId, String videoFilePath) {
+        if (!Boolean.TRUE.equals(appConfig.getHlsAbrEnabled())) {
+            return;
+        }
+        try {
+            executor.execute(() -> generateAll(fileId, videoFilePath));
+        } catch (RejectedExecutionException e) {
+            logger.warn("等待生成多清晰度切片的视频过多，只保留原画:{}", videoFilePath);
+        }
+    }
+
+    /**
+     * @param fileId
+     * @param videoFilePath
+     * @return void
+     * @description 按配置的清晰度列表依次生成，只生成低于原视频高度的清晰度，低清晰度先生成。失败时只记录日志
+     */
+    private void generateAll(String fileId, String videoFilePath) {
+        VideoInfo source;
+        try {
+            source = probe(videoFilePath);
+        } catch (Exception e) {
+            logger.warn("读取视频信息失败，不生成多清晰度切片:{}", videoFilePath, e);
+            return;
+        }
+        List<Rendition> renditionList = getRenditionList(source);
+        File folder = new File(videoFilePath.substring(0, videoFilePath.lastIndexOf(".")));
+        for (Rendition rendition : renditionList) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            generate(fileId, videoFilePath, folder, source, rendition, renditionList);
+        }
+    }
+
+    /**
+     * @param fileId
+     * @param videoFilePath
+     * @param folder
+     * @param source
+     * @param rendition
+     * @param renditionList
+     * @return void
+     * @description 重新编码生成一个清晰度的切片和索引文件，完成后再把索引文件改为正式名称并更新主索引文件
+     */
+    private void generate(String fileId, String videoFilePath, File folder, VideoInfo source, Rendition rendition, List<Rendition> renditionList) {
+        String name = fileId + "_" + rendition.height + "p";
+        Path playlistPath = new File(folder, name + M3U8_SUFFIX).toPath();
+        Path tempPlaylistPath = new File(folder, name + M3U8_SUFFIX + TEMP_SUFFIX).toPath();
+        try {
+            //关键帧与切片时长对齐，各清晰度的切片可以在相同的时间点切换
+            processRunner.execute(Arrays.asList("ffmpeg", "-y", "-i", videoFilePath, "-map", "0:v:0", "-map", "0:a:0?", "-sn", "-dn",
+                    "-vf", "scale=-2:" + rendition.height, "-c:v", "libx264", "-preset", "veryfast", "-profile:v", "main",
+                    "-b:v", String.valueOf(rendition.bitrate), "-maxrate", String.valueOf(rendition.bitrate * 107 / 100),
+                    "-bufsize", String.valueOf(rendition.bitrate * 2),
+                    "-force_key_frames", "expr:gte(t,n_forced*" + SEGMENT_TIME + ")",
+                    "-c:a", "aac", "-b:a", String.valueOf(AUDIO_BITRATE), "-ac", "2",
+                    "-f", "segment", "-segment_format", "mpegts", "-segment_list", tempPlaylistPath.toString(),
+                    "-segment_list_type", "m3u8", "-segment_time", String.valueOf(SEGMENT_TIME),
+                    new File(folder, name + "_%4d.ts").getPath()), appConfig.getHlsAbrTimeout(), processPermits);
+            Files.move(tempPlaylistPath, playlistPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            publishMaster(fileId, folder, source, renditionList);
+        } catch (Exception e) {
+            logger.error("生成{}p切片失败:{}", rendition.height, videoFilePath, e);
+        }
+    }
+
+    /**
+     * @param fileId
+     * @param folder
+     * @param source
+     * @param renditionList
+     * @return void
+     * @description 用已经生成完的清晰度和原画生成主索引文件并替换index.m3u8。第一次替换前把原画的索引文件另存一份，主索引文件引用它
+     */
+    private void publishMaster(String fileId, File folder, VideoInfo source, List<Rendition> renditionList) throws IOException {
+        synchronized (publishLock) {
+            Path indexPath = new File(folder, Constants.M3U8_NAME).toPath();
+            String sourceName = fileId + "_" + SOURCE_NAME + M3U8_SUFFIX;
+            Path sourcePath = new File(folder, sourceName).toPath();
+            if (!Files.exists(sourcePath)) {
+                if (!Files.exists(indexPath)) {
+                    return;
+                }
+                Path tempSourcePath = new File(folder, sourceName + TEMP_SUFFIX).toPath();
+                Files.copy(indexPath, tempSourcePath, StandardCopyOption.REPLACE_EXISTING);
+                Files.move(tempSourcePath, sourcePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            StringBuilder master = new StringBuilder("#EXTM3U\n#EXT-X-VERSION:3\n");
+            long maxBandwidth = 0;
+            for (Rendition rendition : renditionList) {
+                String name = fileId + "_" + rendition.height + "p" + M3U8_SUFFIX;
+                if (!Files.exists(new File(folder, name).toPath())) {
+                    continue;
+                }
+                long width = Math.round(source.width * rendition.height / (double) source.height / 2) * 2;
+                appendVariant(master, rendition.bitrate + AUDIO_BITRATE, width, rendition.height, name);
+                maxBandwidth = Math.max(maxBandwidth, rendition.bitrate + AUDIO_BITRATE);
+            }
+            //读取不到原视频码率时，按高于所有清晰度估算，播放器网速足够时才切换到原画
+            long sourceBandwidth = source.bitrate > 0 ? source.bitrate : maxBandwidth * 2;
+            appendVariant(master, sourceBandwidth, source.width, source.height, sourceName);
+            Path tempIndexPath = new File(folder, Constants.M3U8_NAME + TEMP_SUFFIX).toPath();
+            Files.write(tempIndexPath, master.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tempIndexPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            smallFileCache.invalidate(indexPath.toString());
+        }
+    }
+
+    private void appendVariant(StringBuilder master, long bandwidth, long width, long height, String uri) {
+        master.append("#EXT-X-STREAM-INF:BANDWIDTH=").append(bandwidth);
+        if (width > 0 && height > 0) {
+            master.append(",RESOLUTION=").append(width).append("x").append(height);
+        }
+        master.append("\n").append(uri).append("\n");
+    }
+
+    /**
+     * @param source
+     * @return List<Rendition>
+     * @description 解析配置的清晰度列表，格式为：高度:视频码率，取低于原视频高度的最低几个，按高度从低到高排列
+     */
+    private List<Rendition> getRenditionList(VideoInfo source) {
+        List<Rendition> renditionList = new ArrayList<>();
+        if (source.height <= 0) {
+            return renditionList;
+        }
+        for (String item : appConfig.getHlsAbrLadder().split(",")) {
+            String[] parts = item.trim().split(":");
+            if (parts.length != 2) {
+                continue;
+            }
+            try {
+                Rendition rendition = new Rendition(Integer.parseInt(parts[0].trim()), Long.parseLong(parts[1].trim()));
+                if (rendition.height > 0 && rendition.height < source.height && rendition.bitrate > 0) {
+                    renditionList.add(rendition);
+                }
+            } catch (NumberFormatException e) {
+                logger.warn("清晰度配置格式错误:{}", item);
+            }
+        }
+        renditionList.sort(Comparator.comparingInt(rendition -> rendition.height));
+        return renditionList.size() > MAX_RENDITIONS ? new ArrayList<>(renditionList.subList(0, MAX_RENDITIONS)) : renditionList;
+    }
+
+    /**
+     * @param videoFilePath
+     * @return VideoInfo
+     * @description 通过ffprobe读取第一个视频流的宽高和整个文件的码率
+     */
+    private VideoInfo probe(String videoFilePath) {
+        String output = processRunner.execute(Arrays.asList("ffprobe", "-v", "error", "-select_streams", "v:0",
+                "-show_entries", "stream=width,height:format=bit_rate", "-of", "default=noprint_wrappers=1", videoFilePath),
+                appConfig.getProcessTimeout(), processPermits);
+        VideoInfo videoInfo = new VideoInfo();
+        for (String line : output.split("\n")) {
+            String[] parts = line.trim().split("=", 2);
+            if (parts.length != 2) {
+                continue;
+            }
+            try {
+                switch (parts[0]) {
+                    case "width":
+                        videoInfo.width = Integer.parseInt(parts[1]);
+                        break;
+                    case "height":
+                        videoInfo.height = Integer.parseInt(parts[1]);
+                        break;
+                    case "bit_rate":
+                        videoInfo.bitrate = Long.parseLong(parts[1]);
+                        break;
+                    default:
+                        break;
+                }
+            } catch (NumberFormatException e) {
+                //值为N/A
+            }
+        }
+        return videoInfo;
+    }
+
+    /**
+     * 原视频的宽高和码率，无法读取时为0
+     */
+    private static class VideoInfo {
+
+        private int width;
+
+        private int height;
+
+        private long bitrate;
+    }
+
+    /**
+     * 一个额外生成的清晰度
+     */
+    private static class Rendition {
+
+        private final int height;
+
+        // 视频码率，比特/秒
+        private final long bitrate;
+
+        Rendition(int height, long bitrate) {
+            this.height = height;
+            this.bitrate = bitrate;
+        }
+    }
+}
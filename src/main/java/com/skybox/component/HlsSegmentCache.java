@@ -0,0 +1,187 @@
+package com.skybox.component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.skybox.entity.config.AppConfig;
+import com.skybox.utils.ByteBufferPool;
+import com.skybox.utils.StringTools;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @Project: SkyBox-BE
+ * @Package: com.skybox.component
+ * @ClassName: HlsSegmentCache
+ * @Datetime: 2024/01/23 11:20
+ * @Author: HuangRongQuan
+ * @Email: rongquanhuang01@gmail.com
+ * @Description: 缓存视频切片名中的文件ID到切片目录的对应关系，获取索引文件时填入，之后获取切片不需要查询数据库；
+ * 获取切片时在后台预读后面几个切片，使其进入操作系统的页缓存
+ */
+
+@Component
+public class HlsSegmentCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(HlsSegmentCache.class);
+
+    private static final String SEGMENT_SUFFIX = ".ts";
+
+    private static final String PLAYLIST_SUFFIX = ".m3u8";
+
+    @Resource
+    private AppConfig appConfig;
+
+    @Resource
+    private SmallFileCache smallFileCache;
+
+    // 键为用户ID和切片名中的文件ID，值为切片目录（相对于文件根目录）。只有通过权限校验后才会填入，因此按用户区分
+    private Cache<String, String> folderCache;
+
+    // 最近预读过的切片，避免多个观看者重复预读
+    private Cache<String, Boolean> prefetchedCache;
+
+    private ThreadPoolExecutor prefetchExecutor;
+
+    @PostConstruct
+    public void init() {
+        folderCache = Caffeine.newBuilder()
+                .maximumSize(appConfig.getHlsSegmentCacheSize())
+                .expireAfterAccess(appConfig.getHlsSegmentCacheExpire(), TimeUnit.SECONDS)
+                .build();
+        prefetchedCache = Caffeine.newBuilder()
+                .maximumSize(appConfig.getHlsSegmentCacheSize())
+                .expireAfterWrite(1, TimeUnit.MINUTES)
+                .build();
+        int threads = appConfig.getHlsPrefetchThreads();
+        AtomicInteger threadIndex = new AtomicInteger();
+        //预读只是优化，队列满时直接丢弃
+        prefetchExecutor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(threads * 32),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "hls-prefetch-" + threadIndex.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    @PreDestroy
+    public void destroy() {
+        prefetchExecutor.shutdownNow();
+    }
+
+    /**
+     * @param userId
+     * @param segmentFolder 切片目录（相对于文件根目录）
+     * @param playlistPath  索引文件的绝对路径
+     * @return void
+     * @description 用户获取索引文件后，从索引文件中取出切片名中的文件ID并记录切片目录。分享或秒传得到的视频与原视频共用切片，切片名中的是原视频的文件ID。
+     * 索引文件可能是切片列表，也可能是引用各清晰度索引文件的主索引文件，两者的文件名都以文件ID_开头
+     */
+    public void registerPlaylist(String userId, String segmentFolder, String playlistPath) {
+        SmallFileCache.CachedFile playlist = smallFileCache.get(playlistPath);
+        if (playlist == null || playlist.getContent() == null) {
+            return;
+        }
+        ByteBuffer content = playlist.getContent().duplicate();
+        byte[] bytes = new byte[content.remaining()];
+        content.get(bytes);
+        for (String line : new String(bytes, StandardCharsets.UTF_8).split("\n")) {
+            line = line.trim();
+            //第一个不以#开头的行是切片名或清晰度的索引文件名
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            int index = line.indexOf('_');
+            if (index > 0 && (line.endsWith(SEGMENT_SUFFIX) || line.endsWith(PLAYLIST_SUFFIX))) {
+                putSegmentFolder(userId, line.substring(0, index), segmentFolder);
+            }
+            return;
+        }
+    }
+
+    /**
+     * @param userId
+     * @param segmentFileId 切片名中的文件ID
+     * @return String
+     * @description 获取切片目录，没有记录时返回null
+     */
+    public String getSegmentFolder(String userId, String segmentFileId) {
+        return folderCache.getIfPresent(userId + "_" + segmentFileId);
+    }
+
+    /**
+     * @param userId
+     * @param segmentFileId
+     * @param segmentFolder
+     * @return void
+     * @description 记录切片目录
+     */
+    public void putSegmentFolder(String userId, String segmentFileId, String segmentFolder) {
+        folderCache.put(userId + "_" + segmentFileId, segmentFolder);
+    }
+
+    /**
+     * @param folderPath  切片目录的绝对路径
+     * @param segmentName 当前请求的切片名，格式为：文件ID_序号.ts
+     * @return void
+     * @description 在后台读取当前切片之后的几个切片，观看者请求时直接从页缓存读取
+     */
+    public void prefetch(String folderPath, String segmentName) {
+        int count = appConfig.getHlsPrefetchSegments();
+        int index = segmentName.lastIndexOf('_');
+        if (count <= 0 || index < 0 || !segmentName.endsWith(SEGMENT_SUFFIX) || !StringTools.pathIsOk(segmentName)) {
+            return;
+        }
+        String prefix = segmentName.substring(0, index + 1);
+        String number = segmentName.substring(index + 1, segmentName.length() - SEGMENT_SUFFIX.length());
+        int segmentIndex;
+        try {
+            segmentIndex = Integer.parseInt(number);
+        } catch (NumberFormatException e) {
+            return;
+        }
+        for (int i = 1; i <= count; i++) {
+            String nextName = prefix + String.format("%0" + number.length() + "d", segmentIndex + i);
+            File nextFile = new File(folderPath + "/" + nextName + SEGMENT_SUFFIX);
+            if (prefetchedCache.asMap().putIfAbsent(nextFile.getPath(), Boolean.TRUE) != null) {
+                continue;
+            }
+            prefetchExecutor.execute(() -> readThrough(nextFile));
+        }
+    }
+
+    /**
+     * @param file
+     * @return void
+     * @description 读取整个文件并丢弃内容，只为让文件进入页缓存
+     */
+    private void readThrough(File file) {
+        if (!file.exists()) {
+            return;
+        }
+        ByteBuffer buffer = ByteBufferPool.acquire();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (channel.read(buffer) != -1) {
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            logger.warn("预读视频切片失败:{}", file.getPath(), e);
+        } finally {
+            ByteBufferPool.release(buffer);
+        }
+    }
+}
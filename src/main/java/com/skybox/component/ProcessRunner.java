@@ -0,0 +1,274 @@
+package com.skybox.component;
+
+import com.skybox.entity.config.AppConfig;
+import com.skybox.exception.BusinessException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @Project: SkyBox-BE
+ * @Package: com.skybox.component
+ * @ClassName: ProcessRunner
+ * @Datetime: 2024/01/24 10:30
+ * @Author: HuangRongQuan
+ * @Email: rongquanhuang01@gmail.com
+ * @Description: 执行FFmpeg等外部命令，限制同时运行的进程数，超时后强制结束进程，只保留输出的最后一部分，
+ * 并记录执行时间、退出码和失败次数；应用关闭时结束所有仍在运行的进程
+ */
+
+@Component
+public class ProcessRunner {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProcessRunner.class);
+
+    // 强制结束进程后等待其退出的秒数
+    private static final long DESTROY_WAIT_SECONDS = 5;
+
+    @Resource
+    private AppConfig appConfig;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    private Semaphore permits;
+
+    // 读取进程输出的线程，进程结束后线程可复用
+    private ExecutorService outputExecutor;
+
+    // 正在运行的进程，应用关闭时统一结束
+    private final Set<Process> runningProcesses = ConcurrentHashMap.newKeySet();
+
+    private final AtomicInteger waitingCount = new AtomicInteger();
+
+    @PostConstruct
+    public void init() {
+        permits = new Semaphore(appConfig.getProcessMaxConcurrent(), true);
+        AtomicInteger threadIndex = new AtomicInteger();
+        outputExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "process-output-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        Gauge.builder("skybox.process.active", runningProcesses, Set::size)
+                .description("正在运行的外部命令数")
+                .register(meterRegistry);
+        Gauge.builder("skybox.process.waiting", waitingCount, AtomicInteger::get)
+                .description("等待运行的外部命令数")
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        for (Process process : runningProcesses) {
+            process.destroyForcibly();
+        }
+        outputExecutor.shutdownNow();
+    }
+
+    /**
+     * @param command 命令及参数，每个参数单独一项，不经过shell解析
+     * @return String
+     * @description 使用默认超时时间执行命令
+     */
+    public String execute(List<String> command) {
+        return execute(command, appConfig.getProcessTimeout());
+    }
+
+    /**
+     * @param command        命令及参数，每个参数单独一项，不经过shell解析
+     * @param timeoutSeconds 超时秒数
+     * @return String 标准输出和错误输出的最后一部分
+     * @description 执行命令并等待结束，同时运行的进程数达到process.max.concurrent时等待；退出码不为0、超时或无法启动时抛出异常
+     */
+    public String execute(List<String> command, long timeoutSeconds) {
+        return execute(command, timeoutSeconds, permits);
+    }
+
+    /**
+     * @param command        命令及参数，每个参数单独一项，不经过shell解析
+     * @param timeoutSeconds 超时秒数
+     * @param permits        调用方自己的进程数上限，例如耗时很长的后台编码，不占用转码使用的进程数
+     * @return String 标准输出和错误输出的最后一部分
+     * @description 执行命令并等待结束，同时运行的进程数达到指定的上限时等待；退出码不为0、超时或无法启动时抛出异常
+     */
+    public String execute(List<String> command, long timeoutSeconds, Semaphore permits) {
+        String name = new File(command.get(0)).getName();
+        waitingCount.incrementAndGet();
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BusinessException("执行命令被中断");
+        } finally {
+            waitingCount.decrementAndGet();
+        }
+        long startTime = System.nanoTime();
+        String result = "failure";
+        Process process = null;
+        try {
+            ProcessBuilder processBuilder = new ProcessBuilder(command).redirectErrorStream(true);
+            try {
+                process = processBuilder.start();
+            } catch (IOException e) {
+                recordFailure(name, "start");
+                throw new BusinessException("命令启动失败:" + name, e);
+            }
+            runningProcesses.add(process);
+            //不需要向进程输入，关闭后FFmpeg不会等待交互
+            closeStream(process.getOutputStream());
+            OutputTail output = new OutputTail(appConfig.getProcessOutputMaxSize());
+            Future<?> outputFuture = outputExecutor.submit(output.drain(process.getInputStream()));
+            boolean exited;
+            try {
+                exited = process.waitFor(timeoutSeconds, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                process.destroyForcibly();
+                recordFailure(name, "interrupted");
+                throw new BusinessException("执行命令被中断:" + name);
+            }
+            if (!exited) {
+                result = "timeout";
+                process.destroyForcibly();
+                waitQuietly(process);
+                recordFailure(name, "timeout");
+                logger.error("执行命令超时{}秒，已强制结束:{}，输出:{}", timeoutSeconds, command, output);
+                throw new BusinessException("执行命令超时:" + name);
+            }
+            //进程退出后输出很快读完，读取线程异常时不影响结果
+            try {
+                outputFuture.get(DESTROY_WAIT_SECONDS, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                outputFuture.cancel(true);
+            }
+            int exitCode = process.exitValue();
+            if (exitCode != 0) {
+                recordFailure(name, String.valueOf(exitCode));
+                logger.error("执行命令失败，退出码:{}，命令:{}，输出:{}", exitCode, command, output);
+                throw new BusinessException("执行命令失败:" + name + "，退出码:" + exitCode);
+            }
+            result = "success";
+            logger.info("执行命令:{}，已执行完毕", command);
+            return output.toString();
+        } finally {
+            if (process != null) {
+                runningProcesses.remove(process);
+                //关闭输出流使读取线程结束
+                closeStream(process.getInputStream());
+            }
+            permits.release();
+            Timer.builder("skybox.process.run")
+                    .description("外部命令的执行时间")
+                    .tag("command", name)
+                    .tag("result", result)
+                    .register(meterRegistry)
+                    .record(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * @param name
+     * @param reason 退出码，或timeout、start、interrupted
+     * @return void
+     * @description 记录命令失败次数
+     */
+    private void recordFailure(String name, String reason) {
+        Counter.builder("skybox.process.failure")
+                .description("外部命令的失败次数")
+                .tag("command", name)
+                .tag("reason", reason)
+                .register(meterRegistry)
+                .increment();
+    }
+
+    private void waitQuietly(Process process) {
+        try {
+            process.waitFor(DESTROY_WAIT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param stream
+     * @return void
+     * @description 关闭进程的输入或输出流，进程已经结束时关闭可能失败，忽略异常
+     */
+    private void closeStream(Closeable stream) {
+        try {
+            stream.close();
+        } catch (IOException e) {
+            //进程已经结束，流已不可用
+        }
+    }
+
+    /**
+     * 保留进程输出的最后maxSize个字节，FFmpeg的错误信息在输出末尾
+     */
+    private static class OutputTail {
+
+        private final byte[] buffer;
+
+        // 已经读取的总字节数
+        private long total;
+
+        OutputTail(int maxSize) {
+            this.buffer = new byte[Math.max(maxSize, 1)];
+        }
+
+        Runnable drain(InputStream inputStream) {
+            return () -> {
+                byte[] chunk = new byte[4096];
+                try {
+                    int count;
+                    while ((count = inputStream.read(chunk)) != -1) {
+                        append(chunk, count);
+                    }
+                } catch (IOException e) {
+                    //进程结束后关闭流
+                }
+            };
+        }
+
+        private synchronized void append(byte[] chunk, int count) {
+            for (int i = 0; i < count; i++) {
+                buffer[(int) (total++ % buffer.length)] = chunk[i];
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            if (total <= buffer.length) {
+                return new String(buffer, 0, (int) total, StandardCharsets.UTF_8);
+            }
+            int start = (int) (total % buffer.length);
+            byte[] bytes = new byte[buffer.length];
+            System.arraycopy(buffer, start, bytes, 0, buffer.length - start);
+            System.arraycopy(buffer, 0, bytes, buffer.length - start, start);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
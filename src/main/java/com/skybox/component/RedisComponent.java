@@ -3,16 +3,30 @@ package com.skybox.component;
 import com.skybox.entity.constants.Constants;
 import com.skybox.entity.dto.DownloadFileDto;
 import com.skybox.entity.dto.SysSettingsDto;
+import com.skybox.entity.dto.TransferJobDto;
+import com.skybox.entity.dto.UploadSessionDto;
 import com.skybox.entity.dto.UserSpaceDto;
+import com.skybox.entity.enums.FileFolderTypeEnums;
+import com.skybox.entity.enums.FileStatusEnums;
 import com.skybox.entity.po.FileInfo;
 import com.skybox.entity.po.UserInfo;
 import com.skybox.entity.query.FileInfoQuery;
+import com.skybox.entity.query.SimplePage;
 import com.skybox.entity.query.UserInfoQuery;
 import com.skybox.mappers.FileInfoMapper;
 import com.skybox.mappers.UserInfoMapper;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
 
 /**
  * @Project: SkyBox-BE
@@ -27,6 +41,77 @@ import javax.annotation.Resource;
 @Component("redisComponent")
 public class RedisComponent {
 
+    // 空间不足，预留失败
+    public static final Long RESERVE_FAIL = 0L;
+    // 预留成功
+    public static final Long RESERVE_SUCCESS = 1L;
+    // 分片已经收到过，不需要再预留
+    public static final Long RESERVE_EXISTS = 2L;
+
+    // 集合在读取成员后发生了变化，需要重新读取后再预留
+    private static final Long RESERVE_RETRY = 3L;
+
+    // 预留时集合发生变化的最大重试次数
+    private static final int RESERVE_MAX_RETRY = 10;
+
+    // 汇总用户所有上传中文件的预留空间（顺便清理已过期的），加上本分片后不超过总空间时预留。
+    // 各文件的预留键由调用方读取集合成员后通过KEYS[4]开始传入，对应的文件ID从ARGV[7]开始传入，集合已变化时返回3
+    private static final RedisScript<Long> RESERVE_TEMP_SIZE_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('GETBIT', KEYS[3], ARGV[2]) == 1 then return 2 end " +
+                    "if redis.call('SCARD', KEYS[1]) ~= #KEYS - 3 then return 3 end " +
+                    "local reserved = 0 " +
+                    "for i = 4, #KEYS do " +
+                    "  local fileId = ARGV[i + 3] " +
+                    "  if redis.call('SISMEMBER', KEYS[1], fileId) == 0 then return 3 end " +
+                    "  local size = redis.call('GET', KEYS[i]) " +
+                    "  if size then reserved = reserved + tonumber(size) else redis.call('SREM', KEYS[1], fileId) end " +
+                    "end " +
+                    "if reserved + tonumber(ARGV[3]) + tonumber(ARGV[4]) > tonumber(ARGV[5]) then return 0 end " +
+                    "redis.call('INCRBY', KEYS[2], ARGV[3]) " +
+                    "redis.call('EXPIRE', KEYS[2], ARGV[6]) " +
+                    "redis.call('SADD', KEYS[1], ARGV[1]) " +
+                    "redis.call('EXPIRE', KEYS[1], ARGV[6]) " +
+                    "return 1", Long.class);
+
+    // 释放预留的空间，大小为-1或释放后不大于0时删除该文件的预留
+    private static final RedisScript<Long> RELEASE_TEMP_SIZE_SCRIPT = new DefaultRedisScript<>(
+            "local size = -1 " +
+                    "if ARGV[2] ~= '-1' then size = redis.call('DECRBY', KEYS[2], ARGV[2]) end " +
+                    "if size <= 0 then " +
+                    "  redis.call('DEL', KEYS[2]) " +
+                    "  redis.call('SREM', KEYS[1], ARGV[1]) " +
+                    "end " +
+                    "return size", Long.class);
+
+    // 取出一个已到执行时间的转码任务，并把它的执行时间推迟到租约到期，租约到期前没有完成的任务会被重新取出
+    private static final RedisScript<String> CLAIM_TRANSFER_JOB_SCRIPT = new DefaultRedisScript<>(
+            "local jobs = redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', ARGV[1], 'LIMIT', 0, 1) " +
+                    "if #jobs == 0 then return nil end " +
+                    "redis.call('ZADD', KEYS[1], ARGV[2], jobs[1]) " +
+                    "return jobs[1]", String.class);
+
+    // 回收物理文件时锁定文件的时长，超过后其他节点可以重新回收
+    private static final long BLOB_LOCK_MILLIS = 10 * 60 * 1000L;
+
+    // 回收前锁定物理文件：引用计数已大于0时取消回收并返回0，锁定成功返回1，其他节点正在回收时返回2。
+    // 回收等待队列的成员按JSON序列化，由ARGV[2]传入
+    private static final RedisScript<Long> LOCK_BLOB_SCRIPT = new DefaultRedisScript<>(
+            "local ref = tonumber(redis.call('HGET', KEYS[1], ARGV[1]) or '0') " +
+                    "if ref > 0 then " +
+                    "  redis.call('ZREM', KEYS[2], ARGV[2]) " +
+                    "  return 0 " +
+                    "end " +
+                    "if redis.call('SET', KEYS[3], '1', 'NX', 'PX', ARGV[3]) then return 1 end " +
+                    "return 2", Long.class);
+
+    // 增加物理文件的引用计数并取消回收，文件已被锁定回收时返回0。计数因缺失而减到负数时从1开始计
+    private static final RedisScript<Long> RETAIN_BLOB_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('EXISTS', KEYS[3]) == 1 then return 0 end " +
+                    "if redis.call('HINCRBY', KEYS[1], ARGV[1], 1) < 1 then redis.call('HSET', KEYS[1], ARGV[1], 1) end " +
+                    "redis.call('ZREM', KEYS[2], ARGV[2]) " +
+                    "redis.call('HDEL', KEYS[4], ARGV[1]) " +
+                    "return 1", Long.class);
+
     @Resource
     private RedisUtils redisUtils;
 
@@ -83,6 +168,28 @@ public class RedisComponent {
         return (DownloadFileDto) redisUtils.get(Constants.REDIS_KEY_DOWNLOAD + code);
     }
 
+    /**
+     * @param keyId
+     * @param newKey        密钥不存在时保存的新密钥
+     * @param expireSeconds
+     * @return String
+     * @description 获取签名下载链接的密钥，不存在时保存新密钥。多个节点同时生成时以先保存的为准
+     */
+    public String getOrCreateDownloadSignKey(long keyId, String newKey, long expireSeconds) {
+        String key = Constants.REDIS_KEY_DOWNLOAD_SIGN_KEY + keyId;
+        redisUtils.setnx(key, newKey, expireSeconds);
+        return (String) redisUtils.get(key);
+    }
+
+    /**
+     * @param keyId
+     * @return String
+     * @description 获取签名下载链接的密钥，不存在时返回null
+     */
+    public String getDownloadSignKey(long keyId) {
+        return (String) redisUtils.get(Constants.REDIS_KEY_DOWNLOAD_SIGN_KEY + keyId);
+    }
+
     /**
      * @param userId
      * @return UserSpaceDto
@@ -134,15 +241,55 @@ public class RedisComponent {
     /**
      * @param userId
      * @param fileId
-     * @param fileSize
+     * @param chunkIndex
+     * @param size
+     * @param spaceDto
+     * @return Long
+     * @description 在一次调用中检查并预留分片占用的空间，返回RESERVE_FAIL、RESERVE_SUCCESS或RESERVE_EXISTS
+     */
+    public Long reserveFileTempSize(String userId, String fileId, Integer chunkIndex, Long size, UserSpaceDto spaceDto) {
+        String uploadingKey = Constants.REDIS_KEY_USER_UPLOADING + userId;
+        for (int i = 0; i < RESERVE_MAX_RETRY; i++) {
+            //脚本访问的键都通过KEYS传入，其他文件的预留键根据集合成员生成
+            List<String> keys = new ArrayList<>(Arrays.asList(uploadingKey, Constants.REDIS_KEY_USER_FILE_TEMP_SIZE + userId + fileId,
+                    Constants.REDIS_KEY_UPLOAD_CHUNKS + userId + fileId));
+            List<String> args = new ArrayList<>(Arrays.asList(fileId, String.valueOf(chunkIndex), String.valueOf(size),
+                    String.valueOf(spaceDto.getUseSpace()), String.valueOf(spaceDto.getTotalSpace()),
+                    String.valueOf(Constants.REDIS_KEY_EXPIRES_ONE_HOUR)));
+            for (Object member : redisUtils.membersString(uploadingKey)) {
+                keys.add(Constants.REDIS_KEY_USER_FILE_TEMP_SIZE + userId + member);
+                args.add(member.toString());
+            }
+            //redisUtils为原始类型，泛型方法的返回值被擦除为Object
+            Long result = (Long) redisUtils.executeString(RESERVE_TEMP_SIZE_SCRIPT, keys, args.toArray(new String[0]));
+            if (!RESERVE_RETRY.equals(result)) {
+                return result;
+            }
+        }
+        return RESERVE_FAIL;
+    }
+
+    /**
+     * @param userId
+     * @param fileId
+     * @param size
      * @return void
-     * @description 保存文件临时大小
+     * @description 分片写入失败或重复时释放预留的空间
      */
-    public void saveFileTempSize(String userId, String fileId, Long fileSize) {
-        // 根据用户ID和文件ID，获取当前文件的临时大小
-        Long currentSize = getFileTempSize(userId, fileId);
-        // 将新的文件大小加上当前大小，并将结果存储在Redis缓存中，并设置过期时间为一小时
-        redisUtils.setex(Constants.REDIS_KEY_USER_FILE_TEMP_SIZE + userId + fileId, currentSize + fileSize, Constants.REDIS_KEY_EXPIRES_ONE_HOUR);
+    public void releaseFileTempSize(String userId, String fileId, Long size) {
+        redisUtils.executeString(RELEASE_TEMP_SIZE_SCRIPT, Arrays.asList(Constants.REDIS_KEY_USER_UPLOADING + userId,
+                Constants.REDIS_KEY_USER_FILE_TEMP_SIZE + userId + fileId), fileId, String.valueOf(size));
+    }
+
+    /**
+     * @param userId
+     * @param fileId
+     * @return void
+     * @description 上传完成后预留的空间已计入用户使用空间，删除预留
+     */
+    public void removeFileTempSize(String userId, String fileId) {
+        redisUtils.executeString(RELEASE_TEMP_SIZE_SCRIPT, Arrays.asList(Constants.REDIS_KEY_USER_UPLOADING + userId,
+                Constants.REDIS_KEY_USER_FILE_TEMP_SIZE + userId + fileId), fileId, "-1");
     }
 
     /**
@@ -157,6 +304,421 @@ public class RedisComponent {
         return currentSize;
     }
 
+    /**
+     * @param userId
+     * @param uploadSessionDto
+     * @return boolean
+     * @description 会话不存在时创建上传会话，并发上传的分片只有一个能创建成功
+     */
+    public boolean createUploadSession(String userId, UploadSessionDto uploadSessionDto) {
+        return redisUtils.setnx(Constants.REDIS_KEY_UPLOAD_SESSION + userId + uploadSessionDto.getFileId(), uploadSessionDto, Constants.REDIS_KEY_EXPIRES_ONE_HOUR);
+    }
+
+    /**
+     * @param userId
+     * @param uploadSessionDto
+     * @return void
+     * @description 保存上传会话，每上传一个分片刷新一次过期时间
+     */
+    public void saveUploadSession(String userId, UploadSessionDto uploadSessionDto) {
+        redisUtils.setex(Constants.REDIS_KEY_UPLOAD_SESSION + userId + uploadSessionDto.getFileId(), uploadSessionDto, Constants.REDIS_KEY_EXPIRES_ONE_HOUR);
+    }
+
+    /**
+     * @param filePath
+     * @return void
+     * @description 记录分片直接写入的预分配目标文件，上传放弃后由清理任务删除
+     */
+    public void saveUploadTarget(String filePath) {
+        redisUtils.zadd(Constants.REDIS_KEY_UPLOAD_TARGET, filePath, System.currentTimeMillis());
+    }
+
+    /**
+     * @param filePath
+     * @return void
+     * @description 上传完成或目标文件已删除后不再记录
+     */
+    public void removeUploadTarget(String filePath) {
+        redisUtils.zrem(Constants.REDIS_KEY_UPLOAD_TARGET, filePath);
+    }
+
+    /**
+     * @param createTimeBefore
+     * @param batchSize
+     * @return Set<String>
+     * @description 获取在指定时间之前创建的预分配目标文件
+     */
+    public Set<String> getUploadTargets(long createTimeBefore, Integer batchSize) {
+        return redisUtils.zrangeByScore(Constants.REDIS_KEY_UPLOAD_TARGET, 0, createTimeBefore, batchSize);
+    }
+
+    /**
+     * @param uploadId 用户ID + 文件ID，即临时目录名
+     * @return boolean
+     * @description 判断上传是否仍在进行，包括分片位图、临时大小、上传会话未过期或者转码任务还未完成
+     */
+    public boolean isUploadActive(String uploadId) {
+        return redisUtils.hasKey(Constants.REDIS_KEY_UPLOAD_CHUNKS + uploadId)
+                || redisUtils.hasKey(Constants.REDIS_KEY_USER_FILE_TEMP_SIZE + uploadId)
+                || redisUtils.hasKey(Constants.REDIS_KEY_UPLOAD_SESSION + uploadId)
+                || redisUtils.hasKey(Constants.REDIS_KEY_TRANSFER_JOB + uploadId);
+    }
+
+    /**
+     * @param userId
+     * @param fileId
+     * @return UploadSessionDto
+     * @description 获取上传会话
+     */
+    public UploadSessionDto getUploadSession(String userId, String fileId) {
+        return (UploadSessionDto) redisUtils.get(Constants.REDIS_KEY_UPLOAD_SESSION + userId + fileId);
+    }
+
+    /**
+     * @param userId
+     * @param fileId
+     * @return void
+     * @description 删除上传会话
+     */
+    public void removeUploadSession(String userId, String fileId) {
+        redisUtils.delete(Constants.REDIS_KEY_UPLOAD_SESSION + userId + fileId);
+    }
+
+    /**
+     * @param userId
+     * @param fileId
+     * @param chunkIndex
+     * @return boolean
+     * @description 在分片位图中记录已收到的分片，返回该分片是否第一次收到
+     */
+    public boolean markChunkUploaded(String userId, String fileId, Integer chunkIndex) {
+        String key = Constants.REDIS_KEY_UPLOAD_CHUNKS + userId + fileId;
+        boolean uploaded = redisUtils.setBit(key, chunkIndex);
+        redisUtils.expire(key, Constants.REDIS_KEY_EXPIRES_ONE_HOUR);
+        return !uploaded;
+    }
+
+    /**
+     * @param userId
+     * @param fileId
+     * @param chunkIndex
+     * @return boolean
+     * @description 判断指定分片是否已经收到
+     */
+    public boolean isChunkUploaded(String userId, String fileId, Integer chunkIndex) {
+        return redisUtils.getBit(Constants.REDIS_KEY_UPLOAD_CHUNKS + userId + fileId, chunkIndex);
+    }
+
+    /**
+     * @param userId
+     * @param fileId
+     * @return long
+     * @description 获取已收到的分片数量
+     */
+    public long getUploadedChunkCount(String userId, String fileId) {
+        return redisUtils.bitCount(Constants.REDIS_KEY_UPLOAD_CHUNKS + userId + fileId);
+    }
+
+    /**
+     * @param userId
+     * @param fileId
+     * @param chunks
+     * @return List<Integer>
+     * @description 获取已收到的分片序号，位图按字节从高位到低位依次对应分片0、1、2...
+     */
+    public List<Integer> getUploadedChunks(String userId, String fileId, Integer chunks) {
+        List<Integer> chunkList = new ArrayList<>();
+        byte[] bitmap = redisUtils.getBytes(Constants.REDIS_KEY_UPLOAD_CHUNKS + userId + fileId);
+        if (bitmap == null) {
+            return chunkList;
+        }
+        for (int i = 0; i < chunks && i / 8 < bitmap.length; i++) {
+            if ((bitmap[i / 8] & (0x80 >>> (i % 8))) != 0) {
+                chunkList.add(i);
+            }
+        }
+        return chunkList;
+    }
+
+    /**
+     * @param userId
+     * @param fileId
+     * @return boolean
+     * @description 获取完成上传的锁，最后几个分片并发到达时只有一个请求负责入库
+     */
+    public boolean lockUploadFinish(String userId, String fileId) {
+        return redisUtils.setnx(Constants.REDIS_KEY_UPLOAD_FINISH_LOCK + userId + fileId, fileId, Constants.REDIS_KEY_EXPIRES_ONE_HOUR);
+    }
+
+    /**
+     * @param userId
+     * @param fileId
+     * @return void
+     * @description 释放完成上传的锁
+     */
+    public void unlockUploadFinish(String userId, String fileId) {
+        redisUtils.delete(Constants.REDIS_KEY_UPLOAD_FINISH_LOCK + userId + fileId);
+    }
+
+    /**
+     * @param userId
+     * @param fileId
+     * @return void
+     * @description 上传完成后删除分片位图
+     */
+    public void removeUploadedChunks(String userId, String fileId) {
+        redisUtils.delete(Constants.REDIS_KEY_UPLOAD_CHUNKS + userId + fileId);
+    }
+
+    /**
+     * @param transferJobDto
+     * @param delayMillis
+     * @return void
+     * @description 保存转码任务，并在指定的延迟后可以被取出执行
+     */
+    public void enqueueTransferJob(TransferJobDto transferJobDto, long delayMillis) {
+        redisUtils.set(Constants.REDIS_KEY_TRANSFER_JOB + transferJobDto.getJobId(), transferJobDto);
+        redisUtils.zadd(Constants.REDIS_KEY_TRANSFER_QUEUE, transferJobDto.getJobId(), System.currentTimeMillis() + delayMillis);
+    }
+
+    /**
+     * @param transferJobDto
+     * @return boolean
+     * @description 转码任务不存在时才保存并立即可以执行，用于启动时恢复任务
+     */
+    public boolean enqueueTransferJobIfAbsent(TransferJobDto transferJobDto) {
+        if (!redisUtils.setnx(Constants.REDIS_KEY_TRANSFER_JOB + transferJobDto.getJobId(), transferJobDto, -1)) {
+            return false;
+        }
+        redisUtils.zadd(Constants.REDIS_KEY_TRANSFER_QUEUE, transferJobDto.getJobId(), System.currentTimeMillis());
+        return true;
+    }
+
+    /**
+     * @param leaseMillis
+     * @return TransferJobDto
+     * @description 取出一个已到执行时间的转码任务，没有时返回null
+     */
+    public TransferJobDto claimTransferJob(long leaseMillis) {
+        while (true) {
+            long now = System.currentTimeMillis();
+            String jobId = (String) redisUtils.execute(CLAIM_TRANSFER_JOB_SCRIPT, Collections.singletonList(Constants.REDIS_KEY_TRANSFER_QUEUE),
+                    now, now + leaseMillis);
+            if (jobId == null) {
+                return null;
+            }
+            TransferJobDto transferJobDto = (TransferJobDto) redisUtils.get(Constants.REDIS_KEY_TRANSFER_JOB + jobId);
+            if (transferJobDto != null) {
+                return transferJobDto;
+            }
+            //任务已完成，只剩下队列中的成员
+            redisUtils.zrem(Constants.REDIS_KEY_TRANSFER_QUEUE, jobId);
+        }
+    }
+
+    /**
+     * @param jobId
+     * @param leaseMillis
+     * @return void
+     * @description 延长执行中的转码任务的租约
+     */
+    public void renewTransferJob(String jobId, long leaseMillis) {
+        redisUtils.zadd(Constants.REDIS_KEY_TRANSFER_QUEUE, jobId, System.currentTimeMillis() + leaseMillis);
+    }
+
+    /**
+     * @param jobId
+     * @return void
+     * @description 转码任务结束后删除任务
+     */
+    public void removeTransferJob(String jobId) {
+        redisUtils.delete(Constants.REDIS_KEY_TRANSFER_JOB + jobId);
+        redisUtils.zrem(Constants.REDIS_KEY_TRANSFER_QUEUE, jobId);
+    }
+
+    /**
+     * @param
+     * @return long
+     * @description 获取等待执行的转码任务数，执行中的任务分数为租约到期时间，不计算在内
+     */
+    public long getPendingTransferJobCount() {
+        return redisUtils.zcount(Constants.REDIS_KEY_TRANSFER_QUEUE, Double.NEGATIVE_INFINITY, System.currentTimeMillis());
+    }
+
+    /**
+     * @param filePath
+     * @return boolean
+     * @description 增加物理文件的引用计数，在新增引用该文件的记录的事务提交前调用；文件已被锁定回收时返回false，不能再引用
+     */
+    public boolean retainBlob(String filePath) {
+        Long result = (Long) redisUtils.executeString(RETAIN_BLOB_SCRIPT, Arrays.asList(Constants.REDIS_KEY_BLOB_REF, Constants.REDIS_KEY_BLOB_GC,
+                Constants.REDIS_KEY_BLOB_LOCK + filePath, Constants.REDIS_KEY_BLOB_MD5), filePath, getBlobGcMember(filePath));
+        return Long.valueOf(1).equals(result);
+    }
+
+    /**
+     * @param filePath
+     * @return boolean
+     * @description 回收前锁定物理文件，锁定后不能再新增引用；锁定成功后需要以数据库中的引用数再确认一次，回收或取消后调用unlockBlob
+     */
+    public boolean lockBlob(String filePath) {
+        Long result = (Long) redisUtils.executeString(LOCK_BLOB_SCRIPT, Arrays.asList(Constants.REDIS_KEY_BLOB_REF, Constants.REDIS_KEY_BLOB_GC,
+                Constants.REDIS_KEY_BLOB_LOCK + filePath), filePath, getBlobGcMember(filePath), String.valueOf(BLOB_LOCK_MILLIS));
+        return Long.valueOf(1).equals(result);
+    }
+
+    /**
+     * @param filePath
+     * @return void
+     * @description 回收结束后解除锁定
+     */
+    public void unlockBlob(String filePath) {
+        redisUtils.delete(Constants.REDIS_KEY_BLOB_LOCK + filePath);
+    }
+
+    /**
+     * @param filePath
+     * @return String
+     * @description 回收等待队列通过redisTemplate写入，成员按JSON序列化，Lua脚本中需要使用序列化后的值
+     */
+    private String getBlobGcMember(String filePath) {
+        return new String(RedisSerializer.json().serialize(filePath), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param filePath
+     * @param fileMd5
+     * @param graceMillis
+     * @return void
+     * @description 减少物理文件的引用计数，减到0时在宽限时间后回收，并记下文件的MD5以便回收时删除秒传索引
+     */
+    public void releaseBlob(String filePath, String fileMd5, long graceMillis) {
+        long count = redisUtils.hincrBy(Constants.REDIS_KEY_BLOB_REF, filePath, -1);
+        if (count <= 0) {
+            if (fileMd5 != null) {
+                redisUtils.hset(Constants.REDIS_KEY_BLOB_MD5, filePath, fileMd5);
+            }
+            redisUtils.zadd(Constants.REDIS_KEY_BLOB_GC, filePath, System.currentTimeMillis() + graceMillis);
+        }
+    }
+
+    /**
+     * @param batchSize
+     * @return Set<String>
+     * @description 获取已过宽限时间、等待回收的物理文件
+     */
+    public Set<String> getGcBlobs(Integer batchSize) {
+        return redisUtils.zrangeByScore(Constants.REDIS_KEY_BLOB_GC, 0, System.currentTimeMillis(), batchSize);
+    }
+
+    /**
+     * @param filePath
+     * @param count
+     * @return void
+     * @description 回收前发现文件仍被引用，以数据库中的引用数为准修正引用计数，并取消回收
+     */
+    public void resetBlobRef(String filePath, Integer count) {
+        redisUtils.hset(Constants.REDIS_KEY_BLOB_REF, filePath, count);
+        redisUtils.hdel(Constants.REDIS_KEY_BLOB_MD5, filePath);
+        redisUtils.zrem(Constants.REDIS_KEY_BLOB_GC, filePath);
+    }
+
+    /**
+     * @param filePath
+     * @return void
+     * @description 物理文件回收后删除引用计数
+     */
+    public void removeBlob(String filePath) {
+        String fileMd5 = (String) redisUtils.hget(Constants.REDIS_KEY_BLOB_MD5, filePath);
+        if (fileMd5 != null) {
+            removeMd5IndexFile(fileMd5, filePath);
+        }
+        redisUtils.hdel(Constants.REDIS_KEY_BLOB_REF, filePath);
+        redisUtils.hdel(Constants.REDIS_KEY_BLOB_MD5, filePath);
+        redisUtils.zrem(Constants.REDIS_KEY_BLOB_GC, filePath);
+    }
+
+    /**
+     * @param fileMd5
+     * @return FileInfo
+     * @description 从秒传索引中获取MD5对应的文件
+     */
+    public FileInfo getMd5IndexFile(String fileMd5) {
+        return (FileInfo) redisUtils.hget(Constants.REDIS_KEY_FILE_MD5, fileMd5);
+    }
+
+    /**
+     * @param fileInfo
+     * @return void
+     * @description 将可用于秒传的文件加入秒传索引，MD5已存在时保留原来的文件，只保存秒传需要的字段
+     */
+    public void saveMd5IndexFile(FileInfo fileInfo) {
+        if (fileInfo.getFileMd5() == null || fileInfo.getFilePath() == null) {
+            return;
+        }
+        redisUtils.hsetnx(Constants.REDIS_KEY_FILE_MD5, fileInfo.getFileMd5(), toMd5IndexFile(fileInfo));
+    }
+
+    /**
+     * @param fileInfo
+     * @return FileInfo
+     * @description 只保留秒传需要的字段
+     */
+    private FileInfo toMd5IndexFile(FileInfo fileInfo) {
+        FileInfo indexFile = new FileInfo();
+        indexFile.setFileMd5(fileInfo.getFileMd5());
+        indexFile.setFilePath(fileInfo.getFilePath());
+        indexFile.setFileSize(fileInfo.getFileSize());
+        indexFile.setFileCover(fileInfo.getFileCover());
+        indexFile.setFolderType(fileInfo.getFolderType());
+        indexFile.setFileCategory(fileInfo.getFileCategory());
+        indexFile.setFileType(fileInfo.getFileType());
+        return indexFile;
+    }
+
+    /**
+     * @param fileMd5
+     * @param filePath
+     * @return void
+     * @description 物理文件被回收或已不存在后，如果秒传索引中的MD5仍指向该文件，改为指向另一个相同MD5的可用文件，没有时删除
+     */
+    public void removeMd5IndexFile(String fileMd5, String filePath) {
+        FileInfo indexFile = getMd5IndexFile(fileMd5);
+        if (indexFile == null || !filePath.equals(indexFile.getFilePath())) {
+            return;
+        }
+        FileInfoQuery fileInfoQuery = new FileInfoQuery();
+        fileInfoQuery.setFileMd5(fileMd5);
+        fileInfoQuery.setExcludeFilePath(filePath);
+        fileInfoQuery.setStatus(FileStatusEnums.USING.getStatus());
+        fileInfoQuery.setFolderType(FileFolderTypeEnums.FILE.getType());
+        fileInfoQuery.setSimplePage(new SimplePage(0, 1));
+        List<FileInfo> fileInfoList = fileInfoMapper.selectList(fileInfoQuery);
+        if (fileInfoList.isEmpty()) {
+            redisUtils.hdel(Constants.REDIS_KEY_FILE_MD5, fileMd5);
+            return;
+        }
+        redisUtils.hset(Constants.REDIS_KEY_FILE_MD5, fileMd5, toMd5IndexFile(fileInfoList.get(0)));
+    }
+
+    /**
+     * @param
+     * @return boolean
+     * @description 秒传索引是否已经从数据库建立完成，建立完成前秒传仍需查询数据库
+     */
+    public boolean isMd5IndexReady() {
+        return redisUtils.get(Constants.REDIS_KEY_FILE_MD5_READY) != null;
+    }
+
+    /**
+     * @param
+     * @return void
+     * @description 标记秒传索引已建立完成
+     */
+    public void setMd5IndexReady() {
+        redisUtils.set(Constants.REDIS_KEY_FILE_MD5_READY, System.currentTimeMillis());
+    }
+
     /**
      * @param key
      * @return Long
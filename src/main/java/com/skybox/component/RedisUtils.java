@@ -2,12 +2,19 @@ package com.skybox.component;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.stereotype.Component;
 import org.springframework.util.CollectionUtils;
 
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -26,6 +33,9 @@ public class RedisUtils<V> {
     private static final Logger logger = LoggerFactory.getLogger(RedisUtils.class);
     @Resource
     private RedisTemplate<String, V> redisTemplate;
+    // 键和值都按字符串序列化，Lua脚本中需要拼接键名或做数值运算时使用
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
 
     /**
      * @param key
@@ -88,5 +98,221 @@ public class RedisUtils<V> {
             return false;
         }
     }
-}
 
+    /**
+     * @param key
+     * @param value
+     * @param time
+     * @return boolean
+     * @description 键不存在时才存入Redis缓存，并设置过期时间（小于等于0时不过期），返回是否存入成功
+     */
+    public boolean setnx(String key, V value, long time) {
+        try {
+            Boolean result;
+            if (time > 0) {
+                result = redisTemplate.opsForValue().setIfAbsent(key, value, time, TimeUnit.SECONDS);
+            } else {
+                result = redisTemplate.opsForValue().setIfAbsent(key, value);
+            }
+            return Boolean.TRUE.equals(result);
+        } catch (Exception e) {
+            logger.error("设置redisKey:{},value:{}失败", key, value);
+            return false;
+        }
+    }
+
+    /**
+     * @param key
+     * @return boolean
+     * @description 判断键是否存在
+     */
+    public boolean hasKey(String key) {
+        return Boolean.TRUE.equals(redisTemplate.hasKey(key));
+    }
+
+    /**
+     * @param key
+     * @param time
+     * @return boolean
+     * @description 设置键的过期时间
+     */
+    public boolean expire(String key, long time) {
+        return Boolean.TRUE.equals(redisTemplate.expire(key, time, TimeUnit.SECONDS));
+    }
+
+    /**
+     * @param key
+     * @param offset
+     * @return boolean
+     * @description 将位图中指定偏移量的位设置为1，返回设置之前的值
+     */
+    public boolean setBit(String key, long offset) {
+        return Boolean.TRUE.equals(redisTemplate.opsForValue().setBit(key, offset, true));
+    }
+
+    /**
+     * @param key
+     * @param offset
+     * @return boolean
+     * @description 获取位图指定位的值
+     */
+    public boolean getBit(String key, long offset) {
+        return Boolean.TRUE.equals(redisTemplate.opsForValue().getBit(key, offset));
+    }
+
+    /**
+     * @param key
+     * @return long
+     * @description 统计位图中为1的位数
+     */
+    public long bitCount(String key) {
+        Long count = redisTemplate.execute((RedisCallback<Long>) connection -> connection.bitCount(key.getBytes(StandardCharsets.UTF_8)));
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * @param key
+     * @return byte[]
+     * @description 获取位图的原始字节，不经过值的序列化
+     */
+    public byte[] getBytes(String key) {
+        return redisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(key.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * @param key
+     * @param value
+     * @param score
+     * @return boolean
+     * @description 向有序集合中添加成员，成员已存在时更新分数
+     */
+    public boolean zadd(String key, V value, double score) {
+        try {
+            redisTemplate.opsForZSet().add(key, value, score);
+            return true;
+        } catch (Exception e) {
+            logger.error("设置redisKey:{},value:{}失败", key, value, e);
+            return false;
+        }
+    }
+
+    /**
+     * @param key
+     * @param min
+     * @param max
+     * @param count
+     * @return Set<V>
+     * @description 按分数从小到大获取分数在指定范围内的成员，最多获取count个
+     */
+    public Set<V> zrangeByScore(String key, double min, double max, long count) {
+        return redisTemplate.opsForZSet().rangeByScore(key, min, max, 0, count);
+    }
+
+    /**
+     * @param key
+     * @param min
+     * @param max
+     * @return long
+     * @description 统计分数在指定范围内的成员数
+     */
+    public long zcount(String key, double min, double max) {
+        Long count = redisTemplate.opsForZSet().count(key, min, max);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * @param key
+     * @param value
+     * @return void
+     * @description 从有序集合中删除成员
+     */
+    public void zrem(String key, V value) {
+        redisTemplate.opsForZSet().remove(key, value);
+    }
+
+    /**
+     * @param script
+     * @param keys
+     * @param args
+     * @return T
+     * @description 执行Lua脚本，参数和返回值使用值的序列化方式
+     */
+    public <T> T execute(RedisScript<T> script, List<String> keys, Object... args) {
+        return redisTemplate.execute(script, keys, args);
+    }
+
+    /**
+     * @param key
+     * @param field
+     * @param delta
+     * @return long
+     * @description 原子地增加哈希表中字段的值，返回增加后的值
+     */
+    public long hincrBy(String key, String field, long delta) {
+        Long value = redisTemplate.opsForHash().increment(key, field, delta);
+        return value == null ? 0 : value;
+    }
+
+    /**
+     * @param key
+     * @param field
+     * @param value
+     * @return void
+     * @description 设置哈希表中字段的值
+     */
+    public void hset(String key, String field, Object value) {
+        redisTemplate.opsForHash().put(key, field, value);
+    }
+
+    /**
+     * @param key
+     * @param field
+     * @param value
+     * @return boolean
+     * @description 字段不存在时才设置哈希表中字段的值，返回是否设置成功
+     */
+    public boolean hsetnx(String key, String field, Object value) {
+        return Boolean.TRUE.equals(redisTemplate.opsForHash().putIfAbsent(key, field, value));
+    }
+
+    /**
+     * @param key
+     * @param field
+     * @return Object
+     * @description 获取哈希表中字段的值
+     */
+    public Object hget(String key, String field) {
+        return redisTemplate.opsForHash().get(key, field);
+    }
+
+    /**
+     * @param key
+     * @param field
+     * @return void
+     * @description 删除哈希表中的字段
+     */
+    public void hdel(String key, String field) {
+        redisTemplate.opsForHash().delete(key, field);
+    }
+
+    /**
+     * @param script
+     * @param keys
+     * @param args
+     * @return T
+     * @description 执行Lua脚本，参数和返回值按字符串序列化，脚本中的数值可以直接运算
+     */
+    public <T> T executeString(RedisScript<T> script, List<String> keys, String... args) {
+        return stringRedisTemplate.execute(script, keys, (Object[]) args);
+    }
+
+    /**
+     * @param key
+     * @return Set<String>
+     * @description 获取由Lua脚本按字符串写入的集合的所有成员
+     */
+    public Set<String> membersString(String key) {
+        Set<String> members = stringRedisTemplate.opsForSet().members(key);
+        return members == null ? Collections.emptySet() : members;
+    }
+}
@@ -0,0 +1,171 @@
+package com.skybox.component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.skybox.entity.config.AppConfig;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * @Project: SkyBox-BE
+ * @Package: com.skybox.component
+ * @ClassName: SmallFileCache
+ * @Datetime: 2024/01/22 15:40
+ * @Author: HuangRongQuan
+ * @Email: rongquanhuang01@gmail.com
+ * @Description: 缓存缩略图、封面、头像和视频索引等频繁读取的小文件，按总字节数限制大小并按W-TinyLFU淘汰，
+ * 每次读取时比较文件的修改时间和大小，文件变化后重新加载
+ */
+
+@Component
+public class SmallFileCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(SmallFileCache.class);
+
+    // 每个缓存项除文件内容外的估算开销
+    private static final int ENTRY_OVERHEAD = 128;
+
+    @Resource
+    private AppConfig appConfig;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    private Cache<String, CachedFile> cache;
+
+    @PostConstruct
+    public void init() {
+        cache = Caffeine.newBuilder()
+                .maximumWeight(appConfig.getCacheSmallFileMaxSize())
+                .weigher((String filePath, CachedFile cachedFile) -> cachedFile.content.capacity() + filePath.length() + ENTRY_OVERHEAD)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "skybox.small.file");
+        Gauge.builder("skybox.small.file.hit.ratio", cache, c -> c.stats().hitRate())
+                .description("小文件缓存的命中率")
+                .register(meterRegistry);
+        Gauge.builder("skybox.small.file.weight", cache, c -> c.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0L)).orElse(0L))
+                .description("小文件缓存占用的字节数")
+                .register(meterRegistry);
+    }
+
+    /**
+     * @param filePath
+     * @return CachedFile
+     * @description 获取文件内容。文件不存在时返回null；文件超过缓存的单个文件大小上限时返回不带内容的对象，由调用方直接读取文件
+     */
+    public CachedFile get(String filePath) {
+        Path path = Paths.get(filePath);
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            cache.invalidate(filePath);
+            return null;
+        } catch (IOException e) {
+            logger.error("读取文件属性失败:{}", filePath, e);
+            return null;
+        }
+        if (!attributes.isRegularFile()) {
+            return null;
+        }
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        long length = attributes.size();
+        CachedFile cachedFile = cache.getIfPresent(filePath);
+        if (cachedFile != null && cachedFile.lastModified == lastModified && cachedFile.length == length) {
+            return cachedFile;
+        }
+        if (length > appConfig.getCacheSmallFileMaxEntry()) {
+            cache.invalidate(filePath);
+            return new CachedFile(null, lastModified, length);
+        }
+        try {
+            ByteBuffer content = readContent(path, (int) length);
+            //读取过程中文件变小时不缓存，由调用方直接读取文件
+            if (content.remaining() != length) {
+                return new CachedFile(null, lastModified, length);
+            }
+            cachedFile = new CachedFile(content, lastModified, length);
+            cache.put(filePath, cachedFile);
+            return cachedFile;
+        } catch (IOException e) {
+            logger.error("读取文件失败:{}", filePath, e);
+            return new CachedFile(null, lastModified, length);
+        }
+    }
+
+    /**
+     * @param filePath
+     * @return void
+     * @description 文件被覆盖或删除后立即移出缓存
+     */
+    public void invalidate(String filePath) {
+        cache.invalidate(filePath);
+    }
+
+    /**
+     * @param path
+     * @param length
+     * @return ByteBuffer
+     * @description 读取整个文件，开启堆外缓存时放入直接缓冲区，减少大量小文件对堆和GC的压力
+     */
+    private ByteBuffer readContent(Path path, int length) throws IOException {
+        ByteBuffer buffer = Boolean.TRUE.equals(appConfig.getCacheSmallFileOffHeap()) ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) {
+                    break;
+                }
+            }
+        }
+        buffer.flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * 缓存的文件内容以及加载时文件的修改时间和大小
+     */
+    public static class CachedFile {
+
+        // 文件内容，只读，使用时需调用duplicate()；文件过大不缓存时为null
+        private final ByteBuffer content;
+
+        private final long lastModified;
+
+        private final long length;
+
+        CachedFile(ByteBuffer content, long lastModified, long length) {
+            this.content = content;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+        public ByteBuffer getContent() {
+            return content;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public long getLength() {
+            return length;
+        }
+    }
+}
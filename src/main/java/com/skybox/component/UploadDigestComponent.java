@@ -0,0 +1,247 @@
+package com.skybox.component;
+
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @Project: SkyBox-BE
+ * @Package: com.skybox.component
+ * @ClassName: UploadDigestComponent
+ * @Datetime: 2024/01/10 21:05
+ * @Author: HuangRongQuan
+ * @Email: rongquanhuang01@gmail.com
+ * @Description: 在分片上传过程中增量计算文件的MD5，按顺序到达的分片边写边算，乱序到达的分片在前面的分片补齐后从磁盘补算
+ */
+
+@Component("uploadDigestComponent")
+public class UploadDigestComponent {
+
+    private static final Logger logger = LoggerFactory.getLogger(UploadDigestComponent.class);
+
+    // 摘要状态超过一小时未更新视为上传已放弃，与Redis中上传相关键的过期时间一致
+    private static final long STATE_EXPIRE_MILLIS = 1000L * 60 * 60;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // 上传中的摘要状态，key为userId + fileId
+    private final Map<String, DigestState> digestMap = new ConcurrentHashMap<>();
+
+    /**
+     * @param key
+     * @param chunkIndex
+     * @return MessageDigest
+     * @description 分片开始写入前调用，分片正好是下一个待计算的分片时返回摘要对象，由调用方边写边更新；否则返回null
+     */
+    public MessageDigest beginChunk(String key, Integer chunkIndex) {
+        DigestState state = getState(key);
+        synchronized (state) {
+            state.lastAccessTime = System.currentTimeMillis();
+            if (state.broken || state.inFlight || state.nextChunk != chunkIndex) {
+                return null;
+            }
+            try {
+                state.backup = (MessageDigest) state.digest.clone();
+            } catch (CloneNotSupportedException e) {
+                logger.error("复制摘要状态失败", e);
+                return null;
+            }
+            state.inFlight = true;
+            return state.digest;
+        }
+    }
+
+    /**
+     * @param key
+     * @param success
+     * @return void
+     * @description 边写边算的分片写入结束后调用，写入失败时摘要回退到写入前的状态
+     */
+    public void endChunk(String key, boolean success) {
+        DigestState state = digestMap.get(key);
+        if (state == null) {
+            return;
+        }
+        synchronized (state) {
+            if (success) {
+                state.nextChunk++;
+            } else {
+                state.digest = state.backup;
+            }
+            state.backup = null;
+            state.inFlight = false;
+            state.notifyAll();
+        }
+    }
+
+    /**
+     * @param key
+     * @param checker
+     * @param reader
+     * @return void
+     * @description 从磁盘补算已经收到、但到达时不是下一个待计算分片的分片，直到遇到尚未收到的分片
+     */
+    public void catchUp(String key, ChunkChecker checker, ChunkReader reader) {
+        DigestState state = digestMap.get(key);
+        if (state == null) {
+            return;
+        }
+        while (true) {
+            int chunkIndex;
+            synchronized (state) {
+                //其它线程正在计算，它结束后会继续检查后面的分片
+                if (state.broken || state.inFlight || !checker.isUploaded(state.nextChunk)) {
+                    return;
+                }
+                state.inFlight = true;
+                chunkIndex = state.nextChunk;
+            }
+            boolean success = true;
+            try (InputStream inputStream = reader.open(chunkIndex)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int len;
+                while ((len = inputStream.read(buffer)) != -1) {
+                    state.digest.update(buffer, 0, len);
+                }
+            } catch (IOException e) {
+                logger.error("补算分片摘要失败，key:{},chunkIndex:{}", key, chunkIndex, e);
+                success = false;
+            }
+            synchronized (state) {
+                if (success) {
+                    state.nextChunk++;
+                } else {
+                    state.broken = true;
+                }
+                state.lastAccessTime = System.currentTimeMillis();
+                state.inFlight = false;
+                state.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @param key
+     * @param chunks
+     * @param checker
+     * @param reader
+     * @return String
+     * @description 所有分片收到后调用，补算剩余分片并返回MD5；摘要状态不存在或不完整时返回null
+     */
+    public String finish(String key, Integer chunks, ChunkChecker checker, ChunkReader reader) {
+        DigestState state = digestMap.get(key);
+        if (state == null) {
+            return null;
+        }
+        try {
+            while (true) {
+                synchronized (state) {
+                    while (state.inFlight) {
+                        state.wait();
+                    }
+                    if (state.broken || state.nextChunk >= chunks || !checker.isUploaded(state.nextChunk)) {
+                        break;
+                    }
+                }
+                catchUp(key, checker, reader);
+            }
+            synchronized (state) {
+                if (state.broken || state.nextChunk != chunks) {
+                    return null;
+                }
+                return Hex.encodeHexString(state.digest.digest());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            digestMap.remove(key);
+        }
+    }
+
+    /**
+     * @param key
+     * @return void
+     * @description 删除摘要状态
+     */
+    public void remove(String key) {
+        digestMap.remove(key);
+    }
+
+    /**
+     * @param key
+     * @return DigestState
+     * @description 获取摘要状态，不存在时创建，同时清理长时间未更新的状态
+     */
+    private DigestState getState(String key) {
+        DigestState state = digestMap.get(key);
+        if (state != null) {
+            return state;
+        }
+        long now = System.currentTimeMillis();
+        digestMap.entrySet().removeIf(entry -> now - entry.getValue().lastAccessTime > STATE_EXPIRE_MILLIS);
+        return digestMap.computeIfAbsent(key, k -> new DigestState());
+    }
+
+    /**
+     * @param inputStream
+     * @return String
+     * @description 读取整个输入流计算MD5，摘要状态丢失时使用
+     */
+    public static String md5Hex(InputStream inputStream) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int len;
+        while ((len = inputStream.read(buffer)) != -1) {
+            digest.update(buffer, 0, len);
+        }
+        return Hex.encodeHexString(digest.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @description 判断指定分片是否已经收到
+     */
+    public interface ChunkChecker {
+        boolean isUploaded(int chunkIndex);
+    }
+
+    /**
+     * @description 打开已经写入磁盘的指定分片
+     */
+    public interface ChunkReader {
+        InputStream open(int chunkIndex) throws IOException;
+    }
+
+    /**
+     * @description 一次上传的摘要状态
+     */
+    private static class DigestState {
+        // 已经计算到的摘要
+        private MessageDigest digest = newDigest();
+        // 边写边算失败时用于回退的摘要
+        private MessageDigest backup;
+        // 下一个待计算的分片序号
+        private int nextChunk = 0;
+        // 是否有线程正在计算
+        private boolean inFlight = false;
+        // 补算失败后摘要不再可信
+        private boolean broken = false;
+        private long lastAccessTime = System.currentTimeMillis();
+    }
+}
@@ -22,6 +22,7 @@ import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
 import javax.annotation.Resource;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 import java.io.File;
@@ -194,6 +195,7 @@ public class AccountController extends BaseController {
     }
 
     /**
+     * @param request
      * @param response
      * @param userId
      * @return void
@@ -201,33 +203,24 @@ public class AccountController extends BaseController {
      */
     @RequestMapping("/getAvatar/{userId}")
     @GlobalInterceptor(checkParams = true, checkLogin = false)
-    public void getAvatar(HttpServletResponse response,
+    public void getAvatar(HttpServletRequest request, HttpServletResponse response,
                           @VerifyParam(required = true) @PathVariable("userId") String userId) {
-        // 得到头像根目录 = /file + /avatar
-        String avatarFolderName = Constants.FILE_FOLDER_FILE + Constants.FILE_FOLDER_AVATAR_NAME;
-        // 从AppConfig中得到项目根目录，从而得到放置头像文件夹的绝对路径
-        File folder = new File(appConfig.getProjectFolder() + avatarFolderName);
-        if (!folder.exists()) {
-            // 不存在就创建
-            folder.mkdirs();
-        }
-        // 根据userId得到用户头像的绝对路径 = 放置头像文件夹的绝对路径 + userId + .jpg(统一后缀)
-        String avatarPath = appConfig.getProjectFolder() + avatarFolderName + "/" + userId + Constants.AVATAR_SUFFIX;
-        File file = new File(avatarPath);
-        // 如果找不到该用户的头像
-        if (!file.exists()) {
-            // 默认头
-            avatarPath = appConfig.getProjectFolder() + avatarFolderName + "/" + Constants.AVATAR_DEFUALT;
-            // 获取系统默认头像
-            if (!new File(avatarPath).exists()) {
-                // 获取默认头像失败
-                printNoDefaultImage(response);
-                return;
-            }
-        }
+        // 得到头像根目录 = /file + /avatar，头像文件夹在上传头像时创建
+        String avatarFolder = appConfig.getProjectFolder() + Constants.FILE_FOLDER_FILE + Constants.FILE_FOLDER_AVATAR_NAME;
         // 输出
         response.setContentType("image/jpg");
-        readFile(response, avatarPath);
+        //头像可能被修改，每次使用缓存前都向服务端确认
+        response.setHeader("Cache-Control", "no-cache");
+        // 用户头像的绝对路径 = 放置头像文件夹的绝对路径 + userId + .jpg(统一后缀)，通过小文件缓存输出，修改后按修改时间重新加载
+        if (readCachedFile(request, response, avatarFolder + "/" + userId + Constants.AVATAR_SUFFIX)) {
+            return;
+        }
+        // 找不到该用户的头像时输出系统默认头像
+        if (readCachedFile(request, response, avatarFolder + "/" + Constants.AVATAR_DEFUALT)) {
+            return;
+        }
+        // 获取默认头像失败
+        printNoDefaultImage(response);
     }
 
     /**
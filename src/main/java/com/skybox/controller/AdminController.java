@@ -137,6 +137,7 @@ public class AdminController extends CommonFileController {
     }
 
     /**
+     * @param request
      * @param response
      * @param userId
      * @param fileId
@@ -145,11 +146,12 @@ public class AdminController extends CommonFileController {
      */
     @RequestMapping("/getFile/{userId}/{fileId}")
     @GlobalInterceptor(checkParams = true, checkAdmin = true)
-    public void getFile(HttpServletResponse response, @PathVariable("userId") @VerifyParam(required = true) String userId, @PathVariable("fileId") @VerifyParam(required = true) String fileId) {
-        super.getFile(response, fileId, userId);
+    public void getFile(HttpServletRequest request, HttpServletResponse response, @PathVariable("userId") @VerifyParam(required = true) String userId, @PathVariable("fileId") @VerifyParam(required = true) String fileId) {
+        super.getFile(request, response, fileId, userId);
     }
 
     /**
+     * @param request
      * @param response
      * @param userId
      * @param fileId
@@ -158,8 +160,8 @@ public class AdminController extends CommonFileController {
      */
     @RequestMapping("/ts/getVideoInfo/{userId}/{fileId}")
     @GlobalInterceptor(checkParams = true, checkAdmin = true)
-    public void getVideoInfo(HttpServletResponse response, @PathVariable("userId") @VerifyParam(required = true) String userId, @PathVariable("fileId") @VerifyParam(required = true) String fileId) {
-        super.getFile(response, fileId, userId);
+    public void getVideoInfo(HttpServletRequest request, HttpServletResponse response, @PathVariable("userId") @VerifyParam(required = true) String userId, @PathVariable("fileId") @VerifyParam(required = true) String fileId) {
+        super.getFile(request, response, fileId, userId);
     }
 
     /**
@@ -2,28 +2,54 @@ package com.skybox.controller;
 
 import com.skybox.annotation.GlobalInterceptor;
 import com.skybox.annotation.VerifyParam;
+import com.skybox.component.BandwidthLimiter;
 import com.skybox.controller.commonfilecontroller.CommonFileController;
+import com.skybox.entity.dto.ChunkUploadDto;
 import com.skybox.entity.dto.SessionWebUserDto;
 import com.skybox.entity.dto.UploadResultDto;
 import com.skybox.entity.enums.FileCategoryEnums;
 import com.skybox.entity.enums.FileDelFlagEnums;
 import com.skybox.entity.enums.FileFolderTypeEnums;
+import com.skybox.entity.enums.ResponseCodeEnum;
 import com.skybox.entity.po.FileInfo;
 import com.skybox.entity.query.FileInfoQuery;
 import com.skybox.entity.vo.FileInfoVO;
 import com.skybox.entity.vo.PaginationResultVO;
 import com.skybox.entity.vo.ResponseVO;
+import com.skybox.exception.BusinessException;
 import com.skybox.utils.CopyTools;
 import com.skybox.utils.StringTools;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.fileupload.util.Streams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.web.servlet.MultipartProperties;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.context.request.async.DeferredResultProcessingInterceptor;
+import org.springframework.web.context.request.async.WebAsyncUtils;
 import org.springframework.web.multipart.MultipartFile;
 
+import javax.annotation.Resource;
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 
 /**
@@ -40,6 +66,17 @@ import java.util.List;
 @RequestMapping("/file")
 public class FileInfoController extends CommonFileController {
 
+    private static final Logger logger = LoggerFactory.getLogger(FileInfoController.class);
+
+    // 异步上传每次读取请求体的缓冲区大小
+    private static final int ASYNC_READ_BUFFER_SIZE = 64 * 1024;
+
+    @Resource
+    private MultipartProperties multipartProperties;
+
+    @Resource
+    private BandwidthLimiter bandwidthLimiter;
+
     /**
      * @param session
      * @param query
@@ -64,6 +101,20 @@ public class FileInfoController extends CommonFileController {
         return getSuccessResponseVO(convert2PaginationVO(result, FileInfoVO.class));
     }
 
+    /**
+     * @param session
+     * @param fileId
+     * @param fileSize
+     * @return ResponseVO
+     * @description 上传前协商，返回服务端建议的分片大小、并发数和允许的分片大小范围
+     */
+    @RequestMapping("/uploadInit")
+    @GlobalInterceptor(checkParams = true)
+    public ResponseVO uploadInit(HttpSession session, String fileId, @VerifyParam(required = true) Long fileSize) {
+        SessionWebUserDto webUserDto = getUserInfoFromSession(session);
+        return getSuccessResponseVO(fileInfoService.uploadInit(webUserDto, fileId, fileSize));
+    }
+
     /**
      * @param session
      * @param fileId
@@ -73,22 +124,139 @@ public class FileInfoController extends CommonFileController {
      * @param fileMd5
      * @param chunkIndex
      * @param chunks
+     * @param fileSize  文件总大小，和chunkSize一起传入时分片直接写入目标文件
+     * @param chunkSize 分片大小
      * @return ResponseVO
      * @description 上传文件
      */
     @RequestMapping("/uploadFile")
     @GlobalInterceptor(checkParams = true)
-    public ResponseVO uploadFile(HttpSession session, String fileId, MultipartFile file, @VerifyParam(required = true) String fileName, @VerifyParam(required = true) String filePid, @VerifyParam(required = true) String fileMd5, @VerifyParam(required = true) Integer chunkIndex, @VerifyParam(required = true) Integer chunks) {
+    public ResponseVO uploadFile(HttpSession session, String fileId, MultipartFile file, @VerifyParam(required = true) String fileName, @VerifyParam(required = true) String filePid, @VerifyParam(required = true) String fileMd5, @VerifyParam(required = true) Integer chunkIndex, @VerifyParam(required = true) Integer chunks, Long fileSize, Long chunkSize) {
 
         // 从session中获取SessionWebUserDto对象
         SessionWebUserDto webUserDto = getUserInfoFromSession(session);
 
-        UploadResultDto resultDto = fileInfoService.uploadFile(webUserDto, fileId, file, fileName, filePid, fileMd5, chunkIndex, chunks);
+        UploadResultDto resultDto = fileInfoService.uploadFile(webUserDto, fileId, file, fileName, filePid, fileMd5, chunkIndex, chunks, fileSize, chunkSize);
 
         return getSuccessResponseVO(resultDto);
     }
 
     /**
+     * @param session
+     * @param request
+     * @return ResponseVO
+     * @description 流式上传文件分片，直接解析请求体并把分片写入目标文件，不经过容器的临时文件。
+     * 表单字段与uploadFile相同，fileSize和chunkSize必传，且所有字段必须位于文件之前
+     */
+    @RequestMapping("/uploadFileStream")
+    @GlobalInterceptor
+    public ResponseVO uploadFileStream(HttpSession session, HttpServletRequest request) {
+        if (!ServletFileUpload.isMultipartContent(request)) {
+            throw new BusinessException(ResponseCodeEnum.CODE_600);
+        }
+        SessionWebUserDto webUserDto = getUserInfoFromSession(session);
+        ServletFileUpload servletFileUpload = new ServletFileUpload();
+        servletFileUpload.setSizeMax(multipartProperties.getMaxRequestSize().toBytes());
+        Map<String, String> paramMap = new HashMap<>();
+        try {
+            FileItemIterator iterator = servletFileUpload.getItemIterator(request);
+            while (iterator.hasNext()) {
+                FileItemStream item = iterator.next();
+                if (item.isFormField()) {
+                    paramMap.put(item.getFieldName(), Streams.asString(item.openStream(), StandardCharsets.UTF_8.name()));
+                    continue;
+                }
+                String fileName = paramMap.get("fileName");
+                String filePid = paramMap.get("filePid");
+                String fileMd5 = paramMap.get("fileMd5");
+                //表单字段必须在文件之前，缺少字段时按参数错误返回
+                if (StringTools.isEmpty(fileName) || StringTools.isEmpty(filePid) || StringTools.isEmpty(fileMd5)
+                        || StringTools.isEmpty(paramMap.get("chunkIndex")) || StringTools.isEmpty(paramMap.get("chunks"))
+                        || StringTools.isEmpty(paramMap.get("fileSize")) || StringTools.isEmpty(paramMap.get("chunkSize"))) {
+                    throw new BusinessException(ResponseCodeEnum.CODE_600);
+                }
+                try (InputStream inputStream = item.openStream()) {
+                    UploadResultDto resultDto = fileInfoService.uploadFileStream(webUserDto, paramMap.get("fileId"), inputStream, fileName, filePid, fileMd5,
+                            Integer.parseInt(paramMap.get("chunkIndex")), Integer.parseInt(paramMap.get("chunks")),
+                            Long.parseLong(paramMap.get("fileSize")), Long.parseLong(paramMap.get("chunkSize")));
+                    return getSuccessResponseVO(resultDto);
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new BusinessException(ResponseCodeEnum.CODE_600);
+        } catch (FileUploadException | IOException e) {
+            logger.error("解析上传请求失败", e);
+            throw new BusinessException("文件上传失败");
+        }
+        //请求中没有文件
+        throw new BusinessException(ResponseCodeEnum.CODE_600);
+    }
+
+    /**
+     * @param session
+     * @param request
+     * @param fileId
+     * @param fileName
+     * @param filePid
+     * @param fileMd5
+     * @param chunkIndex
+     * @param chunks
+     * @param fileSize
+     * @param chunkSize
+     * @return DeferredResult<ResponseVO>
+     * @description 异步上传文件分片，参数放在查询字符串中，请求体为分片内容。请求体通过ReadListener读取，
+     * 只有数据到达时才占用线程，慢速客户端上传期间不会一直占用Tomcat的工作线程；需要限速时等待令牌后再继续读取。fileSize和chunkSize必传
+     */
+    @RequestMapping("/uploadFileAsync")
+    @GlobalInterceptor(checkParams = true)
+    public DeferredResult<ResponseVO> uploadFileAsync(HttpSession session, HttpServletRequest request, String fileId, @VerifyParam(required = true) String fileName,
+                                                      @VerifyParam(required = true) String filePid, @VerifyParam(required = true) String fileMd5,
+                                                      @VerifyParam(required = true) Integer chunkIndex, @VerifyParam(required = true) Integer chunks,
+                                                      @VerifyParam(required = true) Long fileSize, @VerifyParam(required = true) Long chunkSize) {
+        SessionWebUserDto webUserDto = getUserInfoFromSession(session);
+        ChunkUploadDto chunkUpload = fileInfoService.beginUploadChunk(webUserDto, fileId, fileName, filePid, fileMd5, chunkIndex, chunks, fileSize, chunkSize);
+        DeferredResult<ResponseVO> deferredResult = new DeferredResult<>(appConfig.getUploadAsyncTimeout() * 1000L);
+        if (chunkUpload.getResultDto() != null) {
+            deferredResult.setResult(getSuccessResponseVO(chunkUpload.getResultDto()));
+            return deferredResult;
+        }
+        deferredResult.onTimeout(() -> {
+            fileInfoService.abortUploadChunk(webUserDto, chunkUpload);
+            deferredResult.setErrorResult(new BusinessException("文件上传超时"));
+        });
+        deferredResult.onError(e -> fileInfoService.abortUploadChunk(webUserDto, chunkUpload));
+        //异步处理开始后才能注册ReadListener
+        WebAsyncUtils.getAsyncManager(request).registerDeferredResultInterceptor(ChunkReadListener.class.getName(), new DeferredResultProcessingInterceptor() {
+            @Override
+            public <T> void preProcess(NativeWebRequest webRequest, DeferredResult<T> result) throws Exception {
+                try {
+                    ServletInputStream inputStream = request.getInputStream();
+                    inputStream.setReadListener(new ChunkReadListener(request.getAsyncContext(), inputStream, webUserDto, chunkUpload, deferredResult));
+                } catch (Exception e) {
+                    fileInfoService.abortUploadChunk(webUserDto, chunkUpload);
+                    throw e;
+                }
+            }
+        });
+        return deferredResult;
+    }
+
+    /**
+     * @param session
+     * @param fileId
+     * @param chunks
+     * @return ResponseVO
+     * @description 获取已上传的分片序号，客户端据此续传缺少的分片
+     */
+    @RequestMapping("/getUploadedChunks")
+    @GlobalInterceptor(checkParams = true)
+    public ResponseVO getUploadedChunks(HttpSession session, @VerifyParam(required = true) String fileId, @VerifyParam(required = true) Integer chunks) {
+        SessionWebUserDto webUserDto = getUserInfoFromSession(session);
+        return getSuccessResponseVO(fileInfoService.getUploadedChunks(webUserDto.getUserId(), fileId, chunks));
+    }
+
+    /**
+     * @param request
      * @param response
      * @param imageFolder
      * @param imageName
@@ -96,11 +264,12 @@ public class FileInfoController extends CommonFileController {
      * @description 获取缩略图
      */
     @RequestMapping("/getImage/{imageFolder}/{imageName}")
-    public void getImage(HttpServletResponse response, @PathVariable("imageFolder") String imageFolder, @PathVariable("imageName") String imageName) {
-        super.getImage(response, imageFolder, imageName);
+    public void getImage(HttpServletRequest request, HttpServletResponse response, @PathVariable("imageFolder") String imageFolder, @PathVariable("imageName") String imageName) {
+        super.getImage(request, response, imageFolder, imageName);
     }
 
     /**
+     * @param request
      * @param response
      * @param session
      * @param fileId
@@ -108,12 +277,13 @@ public class FileInfoController extends CommonFileController {
      * @description 获取视频信息
      */
     @RequestMapping("/ts/getVideoInfo/{fileId}")
-    public void getVideoInfo(HttpServletResponse response, HttpSession session, @PathVariable("fileId") @VerifyParam(required = true) String fileId) {
+    public void getVideoInfo(HttpServletRequest request, HttpServletResponse response, HttpSession session, @PathVariable("fileId") @VerifyParam(required = true) String fileId) {
         SessionWebUserDto webUserDto = getUserInfoFromSession(session);
-        super.getFile(response, fileId, webUserDto.getUserId());
+        super.getFile(request, response, fileId, webUserDto.getUserId());
     }
 
     /**
+     * @param request
      * @param response
      * @param session
      * @param fileId
@@ -121,9 +291,9 @@ public class FileInfoController extends CommonFileController {
      * @description 获取文件
      */
     @RequestMapping("/getFile/{fileId}")
-    public void getFile(HttpServletResponse response, HttpSession session, @PathVariable("fileId") @VerifyParam(required = true) String fileId) {
+    public void getFile(HttpServletRequest request, HttpServletResponse response, HttpSession session, @PathVariable("fileId") @VerifyParam(required = true) String fileId) {
         SessionWebUserDto webUserDto = getUserInfoFromSession(session);
-        super.getFile(response, fileId, webUserDto.getUserId());
+        super.getFile(request, response, fileId, webUserDto.getUserId());
     }
 
     /**
@@ -218,6 +388,19 @@ public class FileInfoController extends CommonFileController {
         return super.createDownloadUrl(fileId, getUserInfoFromSession(session).getUserId());
     }
 
+    /**
+     * @param session
+     * @param fileIds
+     * @return ResponseVO
+     * @description 创建打包下载链接，可以选择多个文件和目录
+     */
+    @RequestMapping("/createZipDownloadUrl")
+    @GlobalInterceptor(checkParams = true)
+    public ResponseVO createZipDownloadUrl(HttpSession session, @VerifyParam(required = true) String fileIds) {
+        SessionWebUserDto webUserDto = getUserInfoFromSession(session);
+        return super.createZipDownloadUrl(fileIds, webUserDto.getUserId());
+    }
+
     /**
      * @param request
      * @param response
@@ -245,5 +428,89 @@ public class FileInfoController extends CommonFileController {
         return getSuccessResponseVO(null);
     }
 
-}
+    /**
+     * 异步上传时读取请求体的回调，每次只读取已经到达的数据并写入目标文件，读取完毕后记录分片
+     */
+    private class ChunkReadListener implements ReadListener {
+
+        private final AsyncContext asyncContext;
+
+        private final ServletInputStream inputStream;
+
+        private final SessionWebUserDto webUserDto;
+
+        private final ChunkUploadDto chunkUpload;
+
+        private final DeferredResult<ResponseVO> deferredResult;
+
+        private final byte[] buffer = new byte[ASYNC_READ_BUFFER_SIZE];
+
+        ChunkReadListener(AsyncContext asyncContext, ServletInputStream inputStream, SessionWebUserDto webUserDto, ChunkUploadDto chunkUpload,
+                          DeferredResult<ResponseVO> deferredResult) {
+            this.asyncContext = asyncContext;
+            this.inputStream = inputStream;
+            this.webUserDto = webUserDto;
+            this.chunkUpload = chunkUpload;
+            this.deferredResult = deferredResult;
+        }
+
+        @Override
+        public void onDataAvailable() throws IOException {
+            try {
+                while (inputStream.isReady() && !inputStream.isFinished()) {
+                    int length = inputStream.read(buffer);
+                    if (length > 0) {
+                        fileInfoService.writeUploadChunk(chunkUpload, ByteBuffer.wrap(buffer, 0, length));
+                        long waitNanos = chunkUpload.getPermit().reserve(length);
+                        if (waitNanos > 0) {
+                            //需要限速时不在容器线程中等待，没有再调用isReady容器不会回调，等待后在容器线程中继续读取
+                            bandwidthLimiter.schedule(this::resume, waitNanos);
+                            return;
+                        }
+                    }
+                }
+            } catch (BusinessException | IOException e) {
+                onError(e);
+            }
+        }
+
+        /**
+         * @param
+         * @return void
+         * @description 等待令牌后继续读取，分片已经结束时不再读取
+         */
+        private void resume() {
+            if (chunkUpload.isClosed()) {
+                return;
+            }
+            try {
+                asyncContext.start(() -> {
+                    try {
+                        onDataAvailable();
+                    } catch (Throwable t) {
+                        onError(t);
+                    }
+                });
+            } catch (IllegalStateException e) {
+                //异步处理已经结束
+                fileInfoService.abortUploadChunk(webUserDto, chunkUpload);
+            }
+        }
 
+        @Override
+        public void onAllDataRead() {
+            try {
+                deferredResult.setResult(getSuccessResponseVO(fileInfoService.finishUploadChunk(webUserDto, chunkUpload)));
+            } catch (Exception e) {
+                deferredResult.setErrorResult(e);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            logger.error("异步上传分片失败，文件Id:{}", chunkUpload.getFileId(), t);
+            fileInfoService.abortUploadChunk(webUserDto, chunkUpload);
+            deferredResult.setErrorResult(t instanceof BusinessException ? t : new BusinessException("文件上传失败"));
+        }
+    }
+}
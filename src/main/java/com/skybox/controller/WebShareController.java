@@ -2,6 +2,7 @@ package com.skybox.controller;
 
 import com.skybox.annotation.GlobalInterceptor;
 import com.skybox.annotation.VerifyParam;
+import com.skybox.component.BandwidthLimiter;
 import com.skybox.controller.commonfilecontroller.CommonFileController;
 import com.skybox.entity.constants.Constants;
 import com.skybox.entity.dto.SessionShareDto;
@@ -191,6 +192,7 @@ public class WebShareController extends CommonFileController {
 
 
     /**
+     * @param request
      * @param response
      * @param session
      * @param shareId
@@ -199,13 +201,15 @@ public class WebShareController extends CommonFileController {
      * @description 获取文件
      */
     @RequestMapping("/getFile/{shareId}/{fileId}")
-    public void getFile(HttpServletResponse response, HttpSession session, @PathVariable("shareId") @VerifyParam(required = true) String shareId, @PathVariable("fileId") @VerifyParam(required = true) String fileId) {
+    public void getFile(HttpServletRequest request, HttpServletResponse response, HttpSession session, @PathVariable("shareId") @VerifyParam(required = true) String shareId, @PathVariable("fileId") @VerifyParam(required = true) String fileId) {
         SessionShareDto shareSessionDto = checkShare(session, shareId);
-        super.getFile(response, fileId, shareSessionDto.getShareUserId());
+        request.setAttribute(BandwidthLimiter.SHARE_ATTRIBUTE, shareId);
+        super.getFile(request, response, fileId, shareSessionDto.getShareUserId());
     }
 
 
     /**
+     * @param request
      * @param response
      * @param session
      * @param shareId
@@ -214,9 +218,10 @@ public class WebShareController extends CommonFileController {
      * @description 获取视频信息
      */
     @RequestMapping("/ts/getVideoInfo/{shareId}/{fileId}")
-    public void getVideoInfo(HttpServletResponse response, HttpSession session, @PathVariable("shareId") @VerifyParam(required = true) String shareId, @PathVariable("fileId") @VerifyParam(required = true) String fileId) {
+    public void getVideoInfo(HttpServletRequest request, HttpServletResponse response, HttpSession session, @PathVariable("shareId") @VerifyParam(required = true) String shareId, @PathVariable("fileId") @VerifyParam(required = true) String fileId) {
         SessionShareDto shareSessionDto = checkShare(session, shareId);
-        super.getFile(response, fileId, shareSessionDto.getShareUserId());
+        request.setAttribute(BandwidthLimiter.SHARE_ATTRIBUTE, shareId);
+        super.getFile(request, response, fileId, shareSessionDto.getShareUserId());
     }
 
 
@@ -231,7 +236,7 @@ public class WebShareController extends CommonFileController {
     @GlobalInterceptor(checkLogin = false, checkParams = true)
     public ResponseVO createDownloadUrl(HttpSession session, @PathVariable("shareId") @VerifyParam(required = true) String shareId, @PathVariable("fileId") @VerifyParam(required = true) String fileId) {
         SessionShareDto shareSessionDto = checkShare(session, shareId);
-        return super.createDownloadUrl(fileId, shareSessionDto.getShareUserId());
+        return super.createDownloadUrl(fileId, shareSessionDto.getShareUserId(), shareId);
     }
 
 
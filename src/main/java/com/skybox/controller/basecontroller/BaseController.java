@@ -1,5 +1,8 @@
 package com.skybox.controller.basecontroller;
 
+import com.skybox.component.AsyncFileSender;
+import com.skybox.component.BandwidthLimiter;
+import com.skybox.component.SmallFileCache;
 import com.skybox.entity.constants.Constants;
 import com.skybox.entity.dto.SessionShareDto;
 import com.skybox.entity.dto.SessionWebUserDto;
@@ -7,16 +10,26 @@ import com.skybox.entity.enums.ResponseCodeEnum;
 import com.skybox.entity.vo.PaginationResultVO;
 import com.skybox.entity.vo.ResponseVO;
 import com.skybox.utils.CopyTools;
+import com.skybox.utils.RangeUtils;
 import com.skybox.utils.StringTools;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Resource;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * @Project: SkyBox-BE
@@ -35,6 +48,24 @@ public class BaseController {
     protected static final String STATUC_ERROR = "error";
     // 日志记录器：使用SLF4J库创建了一个日志记录器，用于输出日志信息
     private static final Logger logger = LoggerFactory.getLogger(BaseController.class);
+    // Tomcat通过请求属性支持sendfile，下面是判断是否支持以及指定发送文件和范围的属性名
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+    // 小于该大小的文件直接输出，与Tomcat默认的sendfile阈值一致
+    private static final long SENDFILE_MIN_SIZE = 48 * 1024;
+    // 用户同时进行的传输数达到上限时返回的状态码
+    protected static final int SC_TOO_MANY_REQUESTS = 429;
+
+    @Resource
+    private BandwidthLimiter bandwidthLimiter;
+
+    @Resource
+    private SmallFileCache smallFileCache;
+
+    @Resource
+    private AsyncFileSender asyncFileSender;
 
     /**
      * @param t
@@ -94,43 +125,267 @@ public class BaseController {
      * @description 读取指定路径的文件，并将文件内容输出到HttpServletResponse中，用于文件下载等操作
      */
     protected void readFile(HttpServletResponse response, String filePath) {
+        readFile(null, response, filePath);
+    }
+
+    /**
+     * @param request
+     * @param response
+     * @param filePath
+     * @return void
+     * @description 读取指定路径的文件输出到HttpServletResponse中，支持Range请求：单个范围返回206，多个范围返回multipart/byteranges，
+     * 范围都无法满足时返回416；If-Range与文件当前版本不一致时返回整个文件。带有ETag和Last-Modified，客户端缓存仍有效时返回304。容器支持sendfile且不需要限速时交给容器零拷贝发送，大文件通过异步处理输出，否则在当前线程输出。
+     * 按用户、分享链接和节点限速，用户同时进行的传输数达到上限时返回429
+     */
+    protected void readFile(HttpServletRequest request, HttpServletResponse response, String filePath) {
         if (!StringTools.pathIsOk(filePath)) {
             return;
         }
-        OutputStream out = null;
-        FileInputStream in = null;
+        File file = new File(filePath);
+        if (!file.exists()) {
+            return;
+        }
+        long length = file.length();
+        long lastModified = file.lastModified();
+        String eTag = getETag(filePath, lastModified, length);
+        response.setHeader("ETag", eTag);
+        response.setDateHeader("Last-Modified", lastModified);
+        response.setHeader("Accept-Ranges", "bytes");
+        if (request != null && isNotModified(request, eTag, lastModified)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        List<long[]> rangeList = request == null ? null : RangeUtils.parseRanges(request.getHeader("Range"), length);
+        if (rangeList != null && !isIfRangeMatched(request, eTag, lastModified)) {
+            rangeList = null;
+        }
+        if (rangeList != null && rangeList.isEmpty()) {
+            response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            response.setHeader("Content-Range", "bytes */" + length);
+            return;
+        }
+        BandwidthLimiter.Permit permit = tryBeginTransfer(request);
+        if (permit == null) {
+            response.setStatus(SC_TOO_MANY_REQUESTS);
+            return;
+        }
+        boolean permitHandedOver = false;
         try {
-            File file = new File(filePath);
-            if (!file.exists()) {
+            if (rangeList != null && rangeList.size() > 1) {
+                try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    OutputStream out = permit.wrap(response.getOutputStream());
+                    writeMultipleRanges(response, in, out, rangeList, length);
+                    out.flush();
+                }
                 return;
             }
-            in = new FileInputStream(file);
-            byte[] byteData = new byte[1024];
-            out = response.getOutputStream();
-            int len = 0;
-            while ((len = in.read(byteData)) != -1) {
-                out.write(byteData, 0, len);
+            long start = 0;
+            long count = length;
+            if (rangeList != null) {
+                long[] range = rangeList.get(0);
+                start = range[0];
+                count = range[1] - range[0] + 1;
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + length);
+            }
+            response.setContentLengthLong(count);
+            //容器支持sendfile时由容器在请求处理完后直接让内核发送文件，不经过应用的缓冲区，因此需要限速时不能使用。
+            //许可放在请求属性中，由BandwidthLimiter在请求销毁时关闭，不在本方法返回时关闭
+            if (count >= SENDFILE_MIN_SIZE && !permit.isLimited()
+                    && Boolean.TRUE.equals(request == null ? null : request.getAttribute(SENDFILE_SUPPORT))) {
+                request.setAttribute(SENDFILE_FILENAME, file.getCanonicalPath());
+                request.setAttribute(SENDFILE_START, start);
+                request.setAttribute(SENDFILE_END, start + count);
+                request.setAttribute(BandwidthLimiter.PERMIT_ATTRIBUTE, permit);
+                permitHandedOver = true;
+                return;
+            }
+            //大文件异步输出，只在连接可写时写入，慢速客户端不占用容器线程
+            if (asyncFileSender.send(request, response, file, start, count, permit)) {
+                permitHandedOver = true;
+                return;
+            }
+            try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                OutputStream out = permit.wrap(response.getOutputStream());
+                RangeUtils.copyRange(in, out, start, count);
+                out.flush();
             }
-            out.flush();
         } catch (Exception e) {
             logger.error("读取文件异常", e);
         } finally {
-            if (out != null) {
-                try {
-                    out.close();
-                } catch (IOException e) {
-                    logger.error("IO异常", e);
+            //sendfile在请求销毁时释放，异步输出在输出结束后释放
+            if (!permitHandedOver) {
+                permit.close();
+            }
+        }
+    }
+
+    /**
+     * @param request
+     * @param response
+     * @param filePath
+     * @return boolean
+     * @description 通过小文件缓存输出缩略图、头像和视频索引等小文件，命中时不需要打开文件，文件不存在时返回false。
+     * 带有Range请求或文件超过缓存的大小上限时按readFile输出。小文件不限速，也不占用用户的同时传输数
+     */
+    protected boolean readCachedFile(HttpServletRequest request, HttpServletResponse response, String filePath) {
+        if (!StringTools.pathIsOk(filePath)) {
+            return false;
+        }
+        SmallFileCache.CachedFile cachedFile = smallFileCache.get(filePath);
+        if (cachedFile == null) {
+            return false;
+        }
+        if (cachedFile.getContent() == null || request.getHeader("Range") != null) {
+            readFile(request, response, filePath);
+            return true;
+        }
+        long lastModified = cachedFile.getLastModified();
+        String eTag = getETag(filePath, lastModified, cachedFile.getLength());
+        response.setHeader("ETag", eTag);
+        response.setDateHeader("Last-Modified", lastModified);
+        response.setHeader("Accept-Ranges", "bytes");
+        if (isNotModified(request, eTag, lastModified)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return true;
+        }
+        ByteBuffer content = cachedFile.getContent().duplicate();
+        response.setContentLength(content.remaining());
+        try {
+            OutputStream out = response.getOutputStream();
+            if (content.hasArray()) {
+                out.write(content.array(), content.arrayOffset() + content.position(), content.remaining());
+            } else {
+                //堆外缓存的内容需要分段复制到堆中才能写入输出流
+                WritableByteChannel outChannel = Channels.newChannel(out);
+                while (content.hasRemaining()) {
+                    outChannel.write(content);
                 }
             }
-            if (in != null) {
-                try {
-                    in.close();
-                } catch (IOException e) {
-                    logger.error("IO异常", e);
+            out.flush();
+        } catch (Exception e) {
+            logger.error("读取文件异常", e);
+        }
+        return true;
+    }
+
+    /**
+     * @param filePath
+     * @param lastModified
+     * @param length
+     * @return String
+     * @description 强校验值由文件路径、修改时间和文件大小组成，只需读取文件属性，不需要打开文件
+     */
+    private String getETag(String filePath, long lastModified, long length) {
+        return "\"" + Integer.toHexString(filePath.hashCode()) + "-" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "\"";
+    }
+
+    /**
+     * @param request
+     * @return BandwidthLimiter.Permit
+     * @description 开始一次下载。通过分享链接访问时按分享链接限速；登录用户按用户和是否为管理员限速，
+     * 未登录时按请求属性中指定的用户限速。用户同时进行的传输数达到上限时返回null
+     */
+    protected BandwidthLimiter.Permit tryBeginTransfer(HttpServletRequest request) {
+        String userId = null;
+        boolean admin = false;
+        String shareId = null;
+        if (request != null) {
+            shareId = (String) request.getAttribute(BandwidthLimiter.SHARE_ATTRIBUTE);
+            HttpSession session = request.getSession(false);
+            SessionWebUserDto webUserDto = session == null ? null : getUserInfoFromSession(session);
+            if (webUserDto != null) {
+                userId = webUserDto.getUserId();
+                admin = Boolean.TRUE.equals(webUserDto.getAdmin());
+            } else {
+                userId = (String) request.getAttribute(BandwidthLimiter.USER_ATTRIBUTE);
+            }
+        }
+        return bandwidthLimiter.tryBeginTransfer(userId, admin, shareId);
+    }
+
+    /**
+     * @param request
+     * @param eTag
+     * @param lastModified
+     * @return boolean
+     * @description 判断客户端缓存的版本是否仍然有效。有If-None-Match时只按校验值判断，否则按If-Modified-Since判断（精确到秒）
+     */
+    private boolean isNotModified(HttpServletRequest request, String eTag, long lastModified) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (!StringTools.isEmpty(ifNoneMatch)) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                //If-None-Match使用弱比较
+                if ("*".equals(tag) || eTag.equals(tag.startsWith("W/") ? tag.substring(2) : tag)) {
+                    return true;
                 }
             }
+            return false;
+        }
+        try {
+            long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+            return ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
         }
     }
 
-}
+    /**
+     * @param request
+     * @param eTag
+     * @param lastModified
+     * @return boolean
+     * @description 判断If-Range是否与文件当前版本一致，没有If-Range时视为一致。If-Range为校验值时需与ETag完全相同（弱校验值不能用于范围请求），
+     * 为时间时需与文件修改时间（精确到秒）相同
+     */
+    private boolean isIfRangeMatched(HttpServletRequest request, String eTag, long lastModified) {
+        String ifRange = request.getHeader("If-Range");
+        if (StringTools.isEmpty(ifRange)) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return eTag.equals(ifRange);
+        }
+        try {
+            return request.getDateHeader("If-Range") / 1000 == lastModified / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
 
+    /**
+     * @param response
+     * @param in
+     * @param out
+     * @param rangeList
+     * @param length
+     * @return void
+     * @description 以multipart/byteranges格式输出多个范围，每个范围带有自己的Content-Type和Content-Range，并预先计算整个响应的长度
+     */
+    private void writeMultipleRanges(HttpServletResponse response, FileChannel in, OutputStream out, List<long[]> rangeList, long length) throws IOException {
+        String boundary = StringTools.getRandomString(Constants.LENGTH_30);
+        String partContentType = response.getContentType() == null ? "application/octet-stream" : response.getContentType();
+        List<byte[]> partHeaderList = new ArrayList<>();
+        long contentLength = 0;
+        for (long[] range : rangeList) {
+            byte[] partHeader = ("\r\n--" + boundary + "\r\nContent-Type: " + partContentType + "\r\nContent-Range: bytes " + range[0] + "-" + range[1]
+                    + "/" + length + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            partHeaderList.add(partHeader);
+            contentLength += partHeader.length + range[1] - range[0] + 1;
+        }
+        byte[] endBoundary = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        contentLength += endBoundary.length;
+
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setContentLengthLong(contentLength);
+        for (int i = 0; i < rangeList.size(); i++) {
+            long[] range = rangeList.get(i);
+            out.write(partHeaderList.get(i));
+            RangeUtils.copyRange(in, out, range[0], range[1] - range[0] + 1);
+        }
+        out.write(endBoundary);
+    }
+
+}
@@ -1,12 +1,19 @@
 package com.skybox.controller.commonfilecontroller;
 
+import com.skybox.component.BandwidthLimiter;
+import com.skybox.component.DownloadTokenComponent;
+import com.skybox.component.HlsSegmentCache;
 import com.skybox.component.RedisComponent;
 import com.skybox.controller.basecontroller.BaseController;
 import com.skybox.entity.config.AppConfig;
 import com.skybox.entity.constants.Constants;
 import com.skybox.entity.dto.DownloadFileDto;
+import com.skybox.entity.enums.DateTimePatternEnum;
 import com.skybox.entity.enums.FileCategoryEnums;
+import com.skybox.entity.enums.FileDelFlagEnums;
 import com.skybox.entity.enums.FileFolderTypeEnums;
+import com.skybox.entity.enums.FileStatusEnums;
+import com.skybox.entity.enums.FileTypeEnums;
 import com.skybox.entity.enums.ResponseCodeEnum;
 import com.skybox.entity.po.FileInfo;
 import com.skybox.entity.query.FileInfoQuery;
@@ -14,17 +21,33 @@ import com.skybox.entity.vo.FolderVO;
 import com.skybox.entity.vo.ResponseVO;
 import com.skybox.exception.BusinessException;
 import com.skybox.service.FileInfoService;
+import com.skybox.utils.ByteBufferPool;
 import com.skybox.utils.CopyTools;
+import com.skybox.utils.DateUtil;
 import com.skybox.utils.StringTools;
 import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.annotation.Resource;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 /**
  * @Project: SkyBox-BE
@@ -38,6 +61,14 @@ import java.util.List;
 
 public class CommonFileController extends BaseController {
 
+    private static final Logger logger = LoggerFactory.getLogger(CommonFileController.class);
+
+    // 打包下载的文件后缀
+    private static final String ZIP_SUFFIX = ".zip";
+
+    // 打包下载时每次查询的目录数
+    private static final int ZIP_QUERY_BATCH = 500;
+
     @Resource
     protected FileInfoService fileInfoService;
 
@@ -47,6 +78,12 @@ public class CommonFileController extends BaseController {
     @Resource
     private RedisComponent redisComponent;
 
+    @Resource
+    private DownloadTokenComponent downloadTokenComponent;
+
+    @Resource
+    private HlsSegmentCache hlsSegmentCache;
+
     /**
      * @param path
      * @param userId
@@ -66,13 +103,14 @@ public class CommonFileController extends BaseController {
     }
 
     /**
+     * @param request
      * @param response
      * @param imageFolder
      * @param imageName
      * @return void
      * @description 根据给定的图片文件夹和图片名称，从指定路径读取图片文件，并将其输出到HttpServletResponse中，用于获取缩略图
      */
-    public void getImage(HttpServletResponse response, String imageFolder, String imageName) {
+    public void getImage(HttpServletRequest request, HttpServletResponse response, String imageFolder, String imageName) {
         if (StringTools.isEmpty(imageFolder) || StringUtils.isBlank(imageName)) {
             return;
         }
@@ -82,46 +120,30 @@ public class CommonFileController extends BaseController {
         String contentType = "image/" + imageSuffix;
         response.setContentType(contentType);
         response.setHeader("Cache-Control", "max-age=2592000");
-        readFile(response, filePath);
+        readCachedFile(request, response, filePath);
     }
 
 
     /**
+     * @param request
      * @param response
      * @param fileId
      * @param userId
      * @return void
-     * @description 根据给定的文件ID和用户ID，从指定路径读取文件，并将其输出到HttpServletResponse中。如果文件是.ts文件，则获取分片文件；否则，获取.m3u8索引文件或其他文件。该方法根据文件的类型确定文件路径，并进行文件读取操作
+     * @description 根据给定的文件ID和用户ID，从指定路径读取文件，并将其输出到HttpServletResponse中。如果文件是.ts文件，则获取分片文件；如果是.m3u8文件，则获取某个清晰度的索引文件；
+     * 否则，获取.m3u8索引文件或其他文件。视频生成了多个清晰度时，index.m3u8是引用各清晰度索引文件的主索引文件。该方法根据文件的类型确定文件路径，并进行文件读取操作
      */
-    protected void getFile(HttpServletResponse response, String fileId, String userId) {
+    protected void getFile(HttpServletRequest request, HttpServletResponse response, String fileId, String userId) {
         String filePath = null;
-        if (fileId.endsWith(".ts")) {
-            String[] tsAarray = fileId.split("_");
-            String realFileId = tsAarray[0];
-            //根据原文件的id查询出一个文件集合
-            FileInfo fileInfo = fileInfoService.getFileInfoByFileIdAndUserId(realFileId, userId);
-            if (fileInfo == null) {
-                //分享的视频，ts路径记录的是原视频的id,这里通过id直接取出原视频
-                FileInfoQuery fileInfoQuery = new FileInfoQuery();
-                fileInfoQuery.setFileId(realFileId);
-                List<FileInfo> fileInfoList = fileInfoService.findListByParam(fileInfoQuery);
-                fileInfo = fileInfoList.get(0);
-                if (fileInfo == null) {
-                    return;
-                }
-
-                //更具当前用户id和路径去查询当前用户是否有该文件，如果没有直接返回
-                fileInfoQuery = new FileInfoQuery();
-                fileInfoQuery.setFilePath(fileInfo.getFilePath());
-                fileInfoQuery.setUserId(userId);
-                Integer count = fileInfoService.findCountByParam(fileInfoQuery);
-                if (count == 0) {
-                    return;
-                }
+        if (fileId.endsWith(".ts") || fileId.endsWith(".m3u8")) {
+            String folderPath = getSegmentFolderPath(fileId, userId);
+            if (folderPath == null) {
+                return;
+            }
+            if (fileId.endsWith(".ts")) {
+                hlsSegmentCache.prefetch(folderPath, fileId);
             }
-            String fileName = fileInfo.getFilePath();
-            fileName = StringTools.getFileNameNoSuffix(fileName) + "/" + fileId;
-            filePath = appConfig.getProjectFolder() + Constants.FILE_FOLDER_FILE + fileName;
+            filePath = folderPath + "/" + fileId;
         } else {
             FileInfo fileInfo = fileInfoService.getFileInfoByFileIdAndUserId(fileId, userId);
             if (fileInfo == null) {
@@ -132,15 +154,64 @@ public class CommonFileController extends BaseController {
                 //重新设置文件路径
                 String fileNameNoSuffix = StringTools.getFileNameNoSuffix(fileInfo.getFilePath());
                 filePath = appConfig.getProjectFolder() + Constants.FILE_FOLDER_FILE + fileNameNoSuffix + "/" + Constants.M3U8_NAME;
+                //记录切片目录，之后获取切片不需要查询数据库
+                hlsSegmentCache.registerPlaylist(userId, fileNameNoSuffix, filePath);
             } else {
                 filePath = appConfig.getProjectFolder() + Constants.FILE_FOLDER_FILE + fileInfo.getFilePath();
             }
         }
+        //视频索引很小且读取频繁，通过缓存输出
+        if (filePath.endsWith(".m3u8")) {
+            readCachedFile(request, response, filePath);
+            return;
+        }
         File file = new File(filePath);
         if (!file.exists()) {
             return;
         }
-        readFile(response, filePath);
+        readFile(request, response, filePath);
+    }
+
+    /**
+     * @param segmentName 切片名或清晰度的索引文件名，以原视频的文件ID_开头
+     * @param userId
+     * @return String
+     * @description 根据切片名中的文件ID获取切片目录的绝对路径，用户没有该视频时返回null
+     */
+    private String getSegmentFolderPath(String segmentName, String userId) {
+        if (!StringTools.pathIsOk(segmentName)) {
+            return null;
+        }
+        String[] tsAarray = segmentName.split("_");
+        String realFileId = tsAarray[0];
+        //获取索引文件时已经记录了切片目录，不需要查询数据库
+        String segmentFolder = hlsSegmentCache.getSegmentFolder(userId, realFileId);
+        if (segmentFolder == null) {
+            //根据原文件的id查询出一个文件集合
+            FileInfo fileInfo = fileInfoService.getFileInfoByFileIdAndUserId(realFileId, userId);
+            if (fileInfo == null) {
+                //分享的视频，ts路径记录的是原视频的id,这里通过id直接取出原视频
+                FileInfoQuery fileInfoQuery = new FileInfoQuery();
+                fileInfoQuery.setFileId(realFileId);
+                List<FileInfo> fileInfoList = fileInfoService.findListByParam(fileInfoQuery);
+                if (fileInfoList.isEmpty()) {
+                    return null;
+                }
+                fileInfo = fileInfoList.get(0);
+
+                //更具当前用户id和路径去查询当前用户是否有该文件，如果没有直接返回
+                fileInfoQuery = new FileInfoQuery();
+                fileInfoQuery.setFilePath(fileInfo.getFilePath());
+                fileInfoQuery.setUserId(userId);
+                Integer count = fileInfoService.findCountByParam(fileInfoQuery);
+                if (count == 0) {
+                    return null;
+                }
+            }
+            segmentFolder = StringTools.getFileNameNoSuffix(fileInfo.getFilePath());
+            hlsSegmentCache.putSegmentFolder(userId, realFileId, segmentFolder);
+        }
+        return appConfig.getProjectFolder() + Constants.FILE_FOLDER_FILE + segmentFolder;
     }
 
 
@@ -148,25 +219,34 @@ public class CommonFileController extends BaseController {
      * @param fileId
      * @param userId
      * @return ResponseVO
-     * @description 根据给定的文件ID和用户ID，创建一个下载链接，并返回包含下载链接的ResponseVO对象。该方法生成一个随机的下载代码，并将下载链接保存到Redis数据库中。
+     * @description 根据给定的文件ID和用户ID，创建一个下载链接，并返回包含下载链接的ResponseVO对象。优先生成签名下载链接，否则生成随机的下载代码并保存到Redis数据库中。
      */
     protected ResponseVO createDownloadUrl(String fileId, String userId) {
+        return createDownloadUrl(fileId, userId, null);
+    }
+
+    /**
+     * @param fileId
+     * @param userId
+     * @param shareId 通过分享链接下载时的分享ID，下载时按分享链接限速
+     * @return ResponseVO
+     * @description 创建下载链接，并记录下载按哪个用户或分享链接限速
+     */
+    protected ResponseVO createDownloadUrl(String fileId, String userId, String shareId) {
         FileInfo fileInfo = fileInfoService.getFileInfoByFileIdAndUserId(fileId, userId);
         if (fileInfo == null) {
             throw new BusinessException(ResponseCodeEnum.CODE_600);
         }
-        // 不能下载文件夹
+        // 文件夹打包下载
         if (FileFolderTypeEnums.FOLDER.getType().equals(fileInfo.getFolderType())) {
-            throw new BusinessException(ResponseCodeEnum.CODE_600);
+            return createZipDownloadUrl(fileId, userId, shareId);
         }
-        // fileId正常，得到50位随机code
-        String code = StringTools.getRandomString(Constants.LENGTH_50);
         DownloadFileDto downloadFileDto = new DownloadFileDto();
-        downloadFileDto.setDownloadCode(code);
         downloadFileDto.setFilePath(fileInfo.getFilePath());
         downloadFileDto.setFileName(fileInfo.getFileName());
-        redisComponent.saveDownloadCode(code, downloadFileDto);
-        return getSuccessResponseVO(code);
+        downloadFileDto.setUserId(userId);
+        downloadFileDto.setShareId(shareId);
+        return getSuccessResponseVO(createDownloadCode(downloadFileDto));
     }
 
     /**
@@ -174,23 +254,192 @@ public class CommonFileController extends BaseController {
      * @param response
      * @param code
      * @return void
-     * @description 根据给定的下载代码，从Redis数据库中获取下载链接信息，并将文件下载到客户端。该方法设置了响应的内容类型和头部信息，以便浏览器能够正确处理下载文件。
+     * @description 根据给定的下载代码，校验签名下载链接或从Redis数据库中获取下载链接信息，并将文件下载到客户端。该方法设置了响应的内容类型和头部信息，以便浏览器能够正确处理下载文件。
      */
     protected void download(HttpServletRequest request, HttpServletResponse response, String code) throws Exception {
-        DownloadFileDto downloadFileDto = redisComponent.getDownloadCode(code);
+        DownloadFileDto downloadFileDto = downloadTokenComponent.isToken(code) ? downloadTokenComponent.parseToken(code) : redisComponent.getDownloadCode(code);
         if (downloadFileDto == null) {
             return;
         }
-        String filePath = appConfig.getProjectFolder() + Constants.FILE_FOLDER_FILE + "/" + downloadFileDto.getFilePath();
         String fileName = downloadFileDto.getFileName();
-        response.setContentType("application/x-msdownload; charset=UTF-8");
+        boolean zipDownload = downloadFileDto.getFileIdList() != null;
+        response.setContentType(zipDownload ? "application/zip" : "application/x-msdownload; charset=UTF-8");
         if (request.getHeader("User-Agent").toLowerCase().indexOf("msie") > 0) {// IE浏览器
             fileName = URLEncoder.encode(fileName, "UTF-8");
         } else {
             fileName = new String(fileName.getBytes(StandardCharsets.UTF_8), "ISO8859-1");
         }
         response.setHeader("Content-Disposition", "attachment;filename=\"" + fileName + "\"");
-        readFile(response, filePath);
+        //下载链接可能在未登录时使用，按创建链接时的分享链接或文件所属用户限速
+        if (downloadFileDto.getShareId() != null) {
+            request.setAttribute(BandwidthLimiter.SHARE_ATTRIBUTE, downloadFileDto.getShareId());
+        } else {
+            request.setAttribute(BandwidthLimiter.USER_ATTRIBUTE, downloadFileDto.getUserId());
+        }
+        if (zipDownload) {
+            downloadZip(request, response, downloadFileDto);
+            return;
+        }
+        String filePath = appConfig.getProjectFolder() + Constants.FILE_FOLDER_FILE + "/" + downloadFileDto.getFilePath();
+        readFile(request, response, filePath);
+    }
+
+    /**
+     * @param fileIds 逗号分隔的文件和目录ID
+     * @param userId
+     * @return ResponseVO
+     * @description 为选中的多个文件或目录创建打包下载链接，下载时再按目录结构读取文件列表
+     */
+    protected ResponseVO createZipDownloadUrl(String fileIds, String userId) {
+        return createZipDownloadUrl(fileIds, userId, null);
+    }
+
+    /**
+     * @param fileIds 逗号分隔的文件和目录ID
+     * @param userId
+     * @param shareId 通过分享链接下载时的分享ID，下载时按分享链接限速
+     * @return ResponseVO
+     * @description 创建打包下载链接，并记录下载按哪个用户或分享链接限速
+     */
+    protected ResponseVO createZipDownloadUrl(String fileIds, String userId, String shareId) {
+        FileInfoQuery fileInfoQuery = new FileInfoQuery();
+        fileInfoQuery.setUserId(userId);
+        fileInfoQuery.setFileIdArray(fileIds.split(","));
+        fileInfoQuery.setDelFlag(FileDelFlagEnums.USING.getFlag());
+        List<FileInfo> fileInfoList = fileInfoService.findListByParam(fileInfoQuery);
+        if (fileInfoList.isEmpty()) {
+            throw new BusinessException(ResponseCodeEnum.CODE_600);
+        }
+        String zipName;
+        if (fileInfoList.size() == 1) {
+            FileInfo fileInfo = fileInfoList.get(0);
+            zipName = FileFolderTypeEnums.FOLDER.getType().equals(fileInfo.getFolderType()) ? fileInfo.getFileName()
+                    : StringTools.getFileNameNoSuffix(fileInfo.getFileName());
+        } else {
+            zipName = "SkyBox_" + DateUtil.format(new Date(), DateTimePatternEnum.YYYY_MM_DD.getPattern());
+        }
+        DownloadFileDto downloadFileDto = new DownloadFileDto();
+        downloadFileDto.setFileName(zipName + ZIP_SUFFIX);
+        downloadFileDto.setUserId(userId);
+        downloadFileDto.setShareId(shareId);
+        downloadFileDto.setFileIdList(fileInfoList.stream().map(FileInfo::getFileId).collect(Collectors.toList()));
+        return getSuccessResponseVO(createDownloadCode(downloadFileDto));
+    }
+
+    /**
+     * @param downloadFileDto
+     * @return String
+     * @description 优先生成签名下载链接，下载时在本地校验；未开启签名链接或无法生成时，得到50位随机code并保存到Redis
+     */
+    private String createDownloadCode(DownloadFileDto downloadFileDto) {
+        String token = downloadTokenComponent.createToken(downloadFileDto);
+        if (token != null) {
+            return token;
+        }
+        String code = StringTools.getRandomString(Constants.LENGTH_50);
+        downloadFileDto.setDownloadCode(code);
+        redisComponent.saveDownloadCode(code, downloadFileDto);
+        return code;
+    }
+
+    /**
+     * @param request
+     * @param response
+     * @param downloadFileDto
+     * @return void
+     * @description 边读取边打包输出ZIP，不生成临时文件。按层查询目录树，每层的子目录合并成批量查询，内存中只保留当前一层的目录；
+     * 视频、音频、图片和压缩包本身已经压缩，不再压缩。输出时与单个文件下载一样限速
+     */
+    private void downloadZip(HttpServletRequest request, HttpServletResponse response, DownloadFileDto downloadFileDto) {
+        String userId = downloadFileDto.getUserId();
+        String fileFolder = appConfig.getProjectFolder() + Constants.FILE_FOLDER_FILE;
+        BandwidthLimiter.Permit permit = tryBeginTransfer(request);
+        if (permit == null) {
+            response.setStatus(SC_TOO_MANY_REQUESTS);
+            return;
+        }
+        byte[] buffer = new byte[ByteBufferPool.BUFFER_SIZE];
+        try {
+            ZipOutputStream zipOut = new ZipOutputStream(new BufferedOutputStream(permit.wrap(response.getOutputStream()), ByteBufferPool.BUFFER_SIZE));
+            FileInfoQuery fileInfoQuery = new FileInfoQuery();
+            fileInfoQuery.setUserId(userId);
+            fileInfoQuery.setFileIdArray(downloadFileDto.getFileIdList().toArray(new String[0]));
+            fileInfoQuery.setDelFlag(FileDelFlagEnums.USING.getFlag());
+            List<FileInfo> levelList = fileInfoService.findListByParam(fileInfoQuery);
+            // 上一层目录ID到其在压缩包中路径的映射
+            Map<String, String> parentPathMap = new HashMap<>();
+            while (!levelList.isEmpty()) {
+                Map<String, String> folderPathMap = new HashMap<>();
+                for (FileInfo fileInfo : levelList) {
+                    String entryName = parentPathMap.getOrDefault(fileInfo.getFilePid(), "") + fileInfo.getFileName();
+                    if (FileFolderTypeEnums.FOLDER.getType().equals(fileInfo.getFolderType())) {
+                        zipOut.putNextEntry(new ZipEntry(entryName + "/"));
+                        zipOut.closeEntry();
+                        folderPathMap.put(fileInfo.getFileId(), entryName + "/");
+                        continue;
+                    }
+                    //转码中或转码失败的文件不打包
+                    if (!FileStatusEnums.USING.getStatus().equals(fileInfo.getStatus())) {
+                        continue;
+                    }
+                    writeZipEntry(zipOut, new File(fileFolder + fileInfo.getFilePath()), entryName, FileTypeEnums.getByType(fileInfo.getFileType()), buffer);
+                }
+                parentPathMap = folderPathMap;
+                levelList = findChildren(userId, new ArrayList<>(folderPathMap.keySet()));
+            }
+            zipOut.finish();
+            zipOut.flush();
+        } catch (Exception e) {
+            logger.error("打包下载文件异常", e);
+        } finally {
+            permit.close();
+        }
+    }
+
+    /**
+     * @param userId
+     * @param folderIdList
+     * @return List<FileInfo>
+     * @description 分批查询多个目录下的文件和子目录
+     */
+    private List<FileInfo> findChildren(String userId, List<String> folderIdList) {
+        List<FileInfo> childList = new ArrayList<>();
+        for (int i = 0; i < folderIdList.size(); i += ZIP_QUERY_BATCH) {
+            FileInfoQuery fileInfoQuery = new FileInfoQuery();
+            fileInfoQuery.setUserId(userId);
+            fileInfoQuery.setFilePidArray(folderIdList.subList(i, Math.min(i + ZIP_QUERY_BATCH, folderIdList.size())).toArray(new String[0]));
+            fileInfoQuery.setDelFlag(FileDelFlagEnums.USING.getFlag());
+            childList.addAll(fileInfoService.findListByParam(fileInfoQuery));
+        }
+        return childList;
+    }
+
+    /**
+     * @param zipOut
+     * @param file
+     * @param entryName
+     * @param fileTypeEnum
+     * @param buffer
+     * @return void
+     * @description 把一个文件写入压缩包，已经压缩过的文件只存储不压缩，其余文件使用最快的压缩级别
+     */
+    private void writeZipEntry(ZipOutputStream zipOut, File file, String entryName, FileTypeEnums fileTypeEnum, byte[] buffer) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        boolean compressed = fileTypeEnum == FileTypeEnums.VIDEO || fileTypeEnum == FileTypeEnums.MUSIC || fileTypeEnum == FileTypeEnums.IMAGE
+                || fileTypeEnum == FileTypeEnums.ZIP;
+        zipOut.setLevel(compressed ? Deflater.NO_COMPRESSION : Deflater.BEST_SPEED);
+        ZipEntry zipEntry = new ZipEntry(entryName);
+        zipEntry.setTime(file.lastModified());
+        zipOut.putNextEntry(zipEntry);
+        try (InputStream in = new FileInputStream(file)) {
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                zipOut.write(buffer, 0, len);
+            }
+        }
+        zipOut.closeEntry();
     }
 }
 
@@ -33,6 +33,122 @@ public class AppConfig {
     @Value("${dev:false}")
     private Boolean dev;
 
+    /**
+     * 文件转码线程池相关的配置属性，使用 @Value 注解从配置文件中读取
+     */
+    @Value("${transfer.pool.size:2}")
+    private Integer transferPoolSize;
+    @Value("${transfer.queue.capacity:200}")
+    private Integer transferQueueCapacity;
+    @Value("${transfer.queue.offer.timeout:30}")
+    private Integer transferQueueOfferTimeout;
+    @Value("${transfer.small.file.size:20971520}")
+    private Long transferSmallFileSize;
+    @Value("${transfer.job.lease:120}")
+    private Integer transferJobLease;
+    @Value("${transfer.max.attempts:3}")
+    private Integer transferMaxAttempts;
+    @Value("${transfer.retry.backoff:30}")
+    private Integer transferRetryBackoff;
+
+    /**
+     * 物理文件回收相关的配置属性，使用 @Value 注解从配置文件中读取
+     */
+    @Value("${blob.gc.grace:600}")
+    private Integer blobGcGrace;
+    @Value("${blob.gc.batch:100}")
+    private Integer blobGcBatch;
+
+    /**
+     * 放弃上传的分片清理相关的配置属性，使用 @Value 注解从配置文件中读取
+     */
+    @Value("${temp.clean.expire:7200}")
+    private Integer tempCleanExpire;
+    @Value("${temp.clean.batch:100}")
+    private Integer tempCleanBatch;
+
+    /**
+     * 上传分片协商相关的配置属性，使用 @Value 注解从配置文件中读取
+     */
+    @Value("${upload.chunk.min.size:1048576}")
+    private Long uploadChunkMinSize;
+    @Value("${upload.chunk.max.size:67108864}")
+    private Long uploadChunkMaxSize;
+    @Value("${upload.max.parallelism:4}")
+    private Integer uploadMaxParallelism;
+    @Value("${upload.disk.low.ratio:0.1}")
+    private Double uploadDiskLowRatio;
+    @Value("${upload.async.timeout:600}")
+    private Integer uploadAsyncTimeout;
+
+    /**
+     * 传输限速相关的配置属性，使用 @Value 注解从配置文件中读取，速度为0表示不限速
+     */
+    @Value("${qos.user.rate:0}")
+    private Long qosUserRate;
+    @Value("${qos.admin.rate:0}")
+    private Long qosAdminRate;
+    @Value("${qos.share.rate:0}")
+    private Long qosShareRate;
+    @Value("${qos.global.rate:0}")
+    private Long qosGlobalRate;
+    @Value("${qos.user.max.transfers:0}")
+    private Integer qosUserMaxTransfers;
+
+    /**
+     * 签名下载链接和异步下载相关的配置属性，使用 @Value 注解从配置文件中读取
+     */
+    @Value("${download.token.enabled:true}")
+    private Boolean downloadTokenEnabled;
+    @Value("${download.token.rotate:3600}")
+    private Integer downloadTokenRotate;
+    @Value("${download.async.enabled:true}")
+    private Boolean downloadAsyncEnabled;
+    @Value("${download.async.min.size:1048576}")
+    private Long downloadAsyncMinSize;
+
+    /**
+     * 小文件缓存相关的配置属性，使用 @Value 注解从配置文件中读取
+     */
+    @Value("${cache.small.file.max.size:67108864}")
+    private Long cacheSmallFileMaxSize;
+    @Value("${cache.small.file.max.entry:262144}")
+    private Long cacheSmallFileMaxEntry;
+    @Value("${cache.small.file.off.heap:true}")
+    private Boolean cacheSmallFileOffHeap;
+
+    /**
+     * 视频切片相关的配置属性，使用 @Value 注解从配置文件中读取
+     */
+    @Value("${hls.segment.cache.size:10000}")
+    private Long hlsSegmentCacheSize;
+    @Value("${hls.segment.cache.expire:3600}")
+    private Integer hlsSegmentCacheExpire;
+    @Value("${hls.prefetch.segments:2}")
+    private Integer hlsPrefetchSegments;
+    @Value("${hls.prefetch.threads:2}")
+    private Integer hlsPrefetchThreads;
+    @Value("${hls.abr.enabled:false}")
+    private Boolean hlsAbrEnabled;
+    @Value("${hls.abr.ladder:360:800000,720:2800000,1080:5000000}")
+    private String hlsAbrLadder;
+    @Value("${hls.abr.timeout:21600}")
+    private Integer hlsAbrTimeout;
+    @Value("${hls.abr.max.concurrent:1}")
+    private Integer hlsAbrMaxConcurrent;
+    @Value("${hls.abr.queue.capacity:100}")
+    private Integer hlsAbrQueueCapacity;
+
+    /**
+     * 外部命令（FFmpeg）执行相关的配置属性，使用 @Value 注解从配置文件中读取
+     */
+    @Value("${process.max.concurrent:2}")
+    private Integer processMaxConcurrent;
+    @Value("${process.timeout:3600}")
+    private Integer processTimeout;
+    @Value("${process.output.max.size:65536}")
+    private Integer processOutputMaxSize;
+
     /**
      * QQ 登录相关的配置属性，使用 @Value 注解从配置文件中读取
      */
@@ -78,6 +194,193 @@ public class AppConfig {
         return dev;
     }
 
+    /**
+     * 获取文件转码线程池相关配置属性的值
+     */
+    public Integer getTransferPoolSize() {
+        return transferPoolSize;
+    }
+
+    public Integer getTransferQueueCapacity() {
+        return transferQueueCapacity;
+    }
+
+    public Integer getTransferQueueOfferTimeout() {
+        return transferQueueOfferTimeout;
+    }
+
+    public Long getTransferSmallFileSize() {
+        return transferSmallFileSize;
+    }
+
+    public Integer getTransferJobLease() {
+        return transferJobLease;
+    }
+
+    public Integer getTransferMaxAttempts() {
+        return transferMaxAttempts;
+    }
+
+    public Integer getTransferRetryBackoff() {
+        return transferRetryBackoff;
+    }
+
+    /**
+     * 获取物理文件回收相关配置属性的值
+     */
+    public Integer getBlobGcGrace() {
+        return blobGcGrace;
+    }
+
+    public Integer getBlobGcBatch() {
+        return blobGcBatch;
+    }
+
+    /**
+     * 获取放弃上传的分片清理相关配置属性的值
+     */
+    public Integer getTempCleanExpire() {
+        return tempCleanExpire;
+    }
+
+    public Integer getTempCleanBatch() {
+        return tempCleanBatch;
+    }
+
+    /**
+     * 获取上传分片协商相关配置属性的值
+     */
+    public Long getUploadChunkMinSize() {
+        return uploadChunkMinSize;
+    }
+
+    public Long getUploadChunkMaxSize() {
+        return uploadChunkMaxSize;
+    }
+
+    public Integer getUploadMaxParallelism() {
+        return uploadMaxParallelism;
+    }
+
+    public Double getUploadDiskLowRatio() {
+        return uploadDiskLowRatio;
+    }
+
+    public Integer getUploadAsyncTimeout() {
+        return uploadAsyncTimeout;
+    }
+
+    /**
+     * 获取传输限速相关配置属性的值
+     */
+    public Long getQosUserRate() {
+        return qosUserRate;
+    }
+
+    public Long getQosAdminRate() {
+        return qosAdminRate;
+    }
+
+    public Long getQosShareRate() {
+        return qosShareRate;
+    }
+
+    public Long getQosGlobalRate() {
+        return qosGlobalRate;
+    }
+
+    public Integer getQosUserMaxTransfers() {
+        return qosUserMaxTransfers;
+    }
+
+    /**
+     * 获取签名下载链接和异步下载相关配置属性的值
+     */
+    public Boolean getDownloadTokenEnabled() {
+        return downloadTokenEnabled;
+    }
+
+    public Integer getDownloadTokenRotate() {
+        return downloadTokenRotate;
+    }
+
+    public Boolean getDownloadAsyncEnabled() {
+        return downloadAsyncEnabled;
+    }
+
+    public Long getDownloadAsyncMinSize() {
+        return downloadAsyncMinSize;
+    }
+
+    /**
+     * 获取小文件缓存相关配置属性的值
+     */
+    public Long getCacheSmallFileMaxSize() {
+        return cacheSmallFileMaxSize;
+    }
+
+    public Long getCacheSmallFileMaxEntry() {
+        return cacheSmallFileMaxEntry;
+    }
+
+    public Boolean getCacheSmallFileOffHeap() {
+        return cacheSmallFileOffHeap;
+    }
+
+    /**
+     * 获取视频切片相关配置属性的值
+     */
+    public Long getHlsSegmentCacheSize() {
+        return hlsSegmentCacheSize;
+    }
+
+    public Integer getHlsSegmentCacheExpire() {
+        return hlsSegmentCacheExpire;
+    }
+
+    public Integer getHlsPrefetchSegments() {
+        return hlsPrefetchSegments;
+    }
+
+    public Integer getHlsPrefetchThreads() {
+        return hlsPrefetchThreads;
+    }
+
+    public Boolean getHlsAbrEnabled() {
+        return hlsAbrEnabled;
+    }
+
+    public String getHlsAbrLadder() {
+        return hlsAbrLadder;
+    }
+
+    public Integer getHlsAbrTimeout() {
+        return hlsAbrTimeout;
+    }
+
+    public Integer getHlsAbrMaxConcurrent() {
+        return hlsAbrMaxConcurrent;
+    }
+
+    public Integer getHlsAbrQueueCapacity() {
+        return hlsAbrQueueCapacity;
+    }
+
+    /**
+     * 获取外部命令执行相关配置属性的值
+     */
+    public Integer getProcessMaxConcurrent() {
+        return processMaxConcurrent;
+    }
+
+    public Integer getProcessTimeout() {
+        return processTimeout;
+    }
+
+    public Integer getProcessOutputMaxSize() {
+        return processOutputMaxSize;
+    }
+
     /**
      * 获取相应的 QQ 登录配置属性的值
      */
@@ -44,8 +44,6 @@ public class Constants {
 
     public static final String IMAGE_PNG_SUFFIX = ".png";
 
-    public static final String TS_NAME = "index.ts";
-
     public static final String M3U8_NAME = "index.m3u8";
 
     public static final String CHECK_CODE_KEY = "check_code_key";
@@ -76,11 +74,39 @@ public class Constants {
     // Redis键常量
     public static final String REDIS_KEY_DOWNLOAD = "skybox:download:";
 
+    public static final String REDIS_KEY_DOWNLOAD_SIGN_KEY = "skybox:downloadkey:";
+
     public static final String REDIS_KEY_SYS_SETTING = "skybox:syssetting:";
 
     public static final String REDIS_KEY_USER_SPACE_USE = "skybox:user:spaceuse:";
 
     public static final String REDIS_KEY_USER_FILE_TEMP_SIZE = "skybox:user:file:temp:";
 
+    public static final String REDIS_KEY_USER_UPLOADING = "skybox:user:uploading:";
+
+    public static final String REDIS_KEY_UPLOAD_SESSION = "skybox:upload:session:";
+
+    public static final String REDIS_KEY_UPLOAD_CHUNKS = "skybox:upload:chunks:";
+
+    public static final String REDIS_KEY_UPLOAD_FINISH_LOCK = "skybox:upload:finish:";
+
+    public static final String REDIS_KEY_UPLOAD_TARGET = "skybox:upload:target";
+
+    public static final String REDIS_KEY_TRANSFER_QUEUE = "skybox:transfer:queue";
+
+    public static final String REDIS_KEY_TRANSFER_JOB = "skybox:transfer:job:";
+
+    public static final String REDIS_KEY_BLOB_REF = "skybox:blob:ref";
+
+    public static final String REDIS_KEY_BLOB_GC = "skybox:blob:gc";
+
+    public static final String REDIS_KEY_BLOB_MD5 = "skybox:blob:md5";
+
+    public static final String REDIS_KEY_BLOB_LOCK = "skybox:blob:lock:";
+
+    public static final String REDIS_KEY_FILE_MD5 = "skybox:file:md5";
+
+    public static final String REDIS_KEY_FILE_MD5_READY = "skybox:file:md5:ready";
+
 }
 
@@ -0,0 +1,186 @@
+package com.skybox.entity.dto;
+
+import com.skybox.component.BandwidthLimiter;
+
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @Project: SkyBox-BE
+ * @Package: com.skybox.entity.dto
+ * @ClassName: ChunkUploadDto
+ * @Datetime: 2024/01/19 21:05
+ * @Author: HuangRongQuan
+ * @Email: rongquanhuang01@gmail.com
+ * @Description: 异步上传中的一个分片，在读取请求体的回调之间保存写入位置、摘要和预留空间等状态
+ */
+
+public class ChunkUploadDto {
+    // 上传文件的唯一标识符
+    private String fileId;
+    // 文件名
+    private String fileName;
+    // 父级目录ID
+    private String filePid;
+    // 客户端计算的文件MD5
+    private String fileMd5;
+    // 分片序号
+    private Integer chunkIndex;
+    // 分片总数
+    private Integer chunks;
+    // 分片应有的大小
+    private Long chunkLength;
+    // 开始上传的时间
+    private Date createTime;
+    // 是否为该分片新预留了空间
+    private Boolean reserved = false;
+    // 上传会话，确定分片在目标文件中的位置
+    private UploadSessionDto uploadSession;
+    // 目标文件的写入通道
+    private FileChannel fileChannel;
+    // 按顺序到达的分片使用的摘要，乱序到达时为null
+    private MessageDigest digest;
+    // 已经写入的字节数
+    private Long written = 0L;
+    // 秒传成功时的上传结果，不为null时不需要读取请求体
+    private UploadResultDto resultDto;
+    // 占用的用户同时传输数，结束或中止时释放
+    private BandwidthLimiter.Permit permit;
+    // 是否已经结束或中止
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    /**
+     * @param
+     * @return boolean
+     * @description 标记分片已结束，只有第一次调用返回true，用于保证完成和中止只执行其中一个
+     */
+    public boolean tryClose() {
+        return closed.compareAndSet(false, true);
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    public String getFileId() {
+        return fileId;
+    }
+
+    public void setFileId(String fileId) {
+        this.fileId = fileId;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    public String getFilePid() {
+        return filePid;
+    }
+
+    public void setFilePid(String filePid) {
+        this.filePid = filePid;
+    }
+
+    public String getFileMd5() {
+        return fileMd5;
+    }
+
+    public void setFileMd5(String fileMd5) {
+        this.fileMd5 = fileMd5;
+    }
+
+    public Integer getChunkIndex() {
+        return chunkIndex;
+    }
+
+    public void setChunkIndex(Integer chunkIndex) {
+        this.chunkIndex = chunkIndex;
+    }
+
+    public Integer getChunks() {
+        return chunks;
+    }
+
+    public void setChunks(Integer chunks) {
+        this.chunks = chunks;
+    }
+
+    public Long getChunkLength() {
+        return chunkLength;
+    }
+
+    public void setChunkLength(Long chunkLength) {
+        this.chunkLength = chunkLength;
+    }
+
+    public Date getCreateTime() {
+        return createTime;
+    }
+
+    public void setCreateTime(Date createTime) {
+        this.createTime = createTime;
+    }
+
+    public Boolean getReserved() {
+        return reserved;
+    }
+
+    public void setReserved(Boolean reserved) {
+        this.reserved = reserved;
+    }
+
+    public UploadSessionDto getUploadSession() {
+        return uploadSession;
+    }
+
+    public void setUploadSession(UploadSessionDto uploadSession) {
+        this.uploadSession = uploadSession;
+    }
+
+    public FileChannel getFileChannel() {
+        return fileChannel;
+    }
+
+    public void setFileChannel(FileChannel fileChannel) {
+        this.fileChannel = fileChannel;
+    }
+
+    public MessageDigest getDigest() {
+        return digest;
+    }
+
+    public void setDigest(MessageDigest digest) {
+        this.digest = digest;
+    }
+
+    public Long getWritten() {
+        return written;
+    }
+
+    public void setWritten(Long written) {
+        this.written = written;
+    }
+
+    public UploadResultDto getResultDto() {
+        return resultDto;
+    }
+
+    public void setResultDto(UploadResultDto resultDto) {
+        this.resultDto = resultDto;
+    }
+
+    public BandwidthLimiter.Permit getPermit() {
+        return permit;
+    }
+
+    public void setPermit(BandwidthLimiter.Permit permit) {
+        this.permit = permit;
+    }
+}
@@ -1,5 +1,7 @@
 package com.skybox.entity.dto;
 
+import java.util.List;
+
 /**
  * @Project: SkyBox-BE
  * @Package: com.skybox.entity.dto
@@ -15,6 +17,14 @@ public class DownloadFileDto {
     private String fileId;
     private String fileName;
     private String filePath;
+    // 文件所属的用户ID，打包下载时用于查询文件，未登录下载时按该用户限速
+    private String userId;
+    // 通过分享链接下载时的分享ID，按分享链接限速
+    private String shareId;
+    // 打包下载时选中的文件和目录ID，不为空时按目录结构打包成ZIP下载
+    private List<String> fileIdList;
+    // 签名下载链接的过期时间（毫秒时间戳）
+    private Long expireTime;
 
     public void setDownloadCode(String downloadCode) {
         this.downloadCode = downloadCode;
@@ -43,5 +53,36 @@ public class DownloadFileDto {
     public void setFilePath(String filePath) {
         this.filePath = filePath;
     }
-}
 
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    public String getShareId() {
+        return shareId;
+    }
+
+    public void setShareId(String shareId) {
+        this.shareId = shareId;
+    }
+
+    public List<String> getFileIdList() {
+        return fileIdList;
+    }
+
+    public void setFileIdList(List<String> fileIdList) {
+        this.fileIdList = fileIdList;
+    }
+
+    public Long getExpireTime() {
+        return expireTime;
+    }
+
+    public void setExpireTime(Long expireTime) {
+        this.expireTime = expireTime;
+    }
+}
@@ -0,0 +1,95 @@
+package com.skybox.entity.dto;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+import java.io.Serializable;
+
+/**
+ * @Project: SkyBox-BE
+ * @Package: com.skybox.entity.dto
+ * @ClassName: TransferJobDto
+ * @Datetime: 2024/01/13 19:40
+ * @Author: HuangRongQuan
+ * @Email: rongquanhuang01@gmail.com
+ * @Description: 保存在Redis中的转码任务，服务重启后可以继续执行
+ */
+
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class TransferJobDto implements Serializable {
+    // 文件所属用户ID
+    private String userId;
+    // 文件ID
+    private String fileId;
+    // 上传过程中服务端计算的MD5，为空时转码时读取文件计算
+    private String serverMd5;
+    // 文件类型，用于确定转码优先级
+    private Integer fileType;
+    // 文件大小
+    private Long fileSize;
+    // 分片数，合并暂存在临时目录的分片时校验
+    private Integer chunks;
+    // 已经失败的次数
+    private Integer attempts = 0;
+
+    @JsonIgnore
+    public String getJobId() {
+        return userId + fileId;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    public String getFileId() {
+        return fileId;
+    }
+
+    public void setFileId(String fileId) {
+        this.fileId = fileId;
+    }
+
+    public String getServerMd5() {
+        return serverMd5;
+    }
+
+    public void setServerMd5(String serverMd5) {
+        this.serverMd5 = serverMd5;
+    }
+
+    public Integer getFileType() {
+        return fileType;
+    }
+
+    public void setFileType(Integer fileType) {
+        this.fileType = fileType;
+    }
+
+    public Long getFileSize() {
+        return fileSize;
+    }
+
+    public void setFileSize(Long fileSize) {
+        this.fileSize = fileSize;
+    }
+
+    public Integer getChunks() {
+        return chunks;
+    }
+
+    public void setChunks(Integer chunks) {
+        this.chunks = chunks;
+    }
+
+    public Integer getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(Integer attempts) {
+        this.attempts = attempts;
+    }
+}
@@ -0,0 +1,79 @@
+package com.skybox.entity.dto;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+import java.io.Serializable;
+
+/**
+ * @Project: SkyBox-BE
+ * @Package: com.skybox.entity.dto
+ * @ClassName: UploadInitDto
+ * @Datetime: 2024/01/18 20:30
+ * @Author: HuangRongQuan
+ * @Email: rongquanhuang01@gmail.com
+ * @Description: 上传前协商的结果，包括服务端建议的分片大小、分片数和并发数，以及允许的分片大小范围
+ */
+
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class UploadInitDto implements Serializable {
+    // 上传文件的唯一标识符
+    private String fileId;
+    // 建议的分片大小
+    private Long chunkSize;
+    // 按建议的分片大小切分后的分片数
+    private Integer chunks;
+    // 建议同时上传的分片数
+    private Integer parallelism;
+    // 允许的最小分片大小，只有一个分片时不受限制
+    private Long minChunkSize;
+    // 允许的最大分片大小
+    private Long maxChunkSize;
+
+    public String getFileId() {
+        return fileId;
+    }
+
+    public void setFileId(String fileId) {
+        this.fileId = fileId;
+    }
+
+    public Long getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(Long chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public Integer getChunks() {
+        return chunks;
+    }
+
+    public void setChunks(Integer chunks) {
+        this.chunks = chunks;
+    }
+
+    public Integer getParallelism() {
+        return parallelism;
+    }
+
+    public void setParallelism(Integer parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public Long getMinChunkSize() {
+        return minChunkSize;
+    }
+
+    public void setMinChunkSize(Long minChunkSize) {
+        this.minChunkSize = minChunkSize;
+    }
+
+    public Long getMaxChunkSize() {
+        return maxChunkSize;
+    }
+
+    public void setMaxChunkSize(Long maxChunkSize) {
+        this.maxChunkSize = maxChunkSize;
+    }
+}
@@ -0,0 +1,90 @@
+package com.skybox.entity.dto;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+import java.io.Serializable;
+
+/**
+ * @Project: SkyBox-BE
+ * @Package: com.skybox.entity.dto
+ * @ClassName: UploadSessionDto
+ * @Datetime: 2024/01/08 20:12
+ * @Author: HuangRongQuan
+ * @Email: rongquanhuang01@gmail.com
+ * @Description: 用于在分片之间传递同一次上传的信息，分片直接写入预分配的目标文件时使用
+ */
+
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class UploadSessionDto implements Serializable {
+    // 上传文件的唯一标识符
+    private String fileId;
+    // 目标文件的相对路径：月份/用户ID文件ID后缀
+    private String filePath;
+    // 文件总大小
+    private Long fileSize;
+    // 分片大小，除最后一个分片外每个分片都是这个大小
+    private Long chunkSize;
+    // 分片总数
+    private Integer chunks;
+
+    public String getFileId() {
+        return fileId;
+    }
+
+    public void setFileId(String fileId) {
+        this.fileId = fileId;
+    }
+
+    public String getFilePath() {
+        return filePath;
+    }
+
+    public void setFilePath(String filePath) {
+        this.filePath = filePath;
+    }
+
+    public Long getFileSize() {
+        return fileSize;
+    }
+
+    public void setFileSize(Long fileSize) {
+        this.fileSize = fileSize;
+    }
+
+    public Long getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(Long chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public Integer getChunks() {
+        return chunks;
+    }
+
+    public void setChunks(Integer chunks) {
+        this.chunks = chunks;
+    }
+
+    /**
+     * @param chunkIndex
+     * @return long
+     * @description 获取指定分片在目标文件中的偏移量
+     */
+    public long getChunkOffset(Integer chunkIndex) {
+        return chunkIndex * chunkSize;
+    }
+
+    /**
+     * @param chunkIndex
+     * @return long
+     * @description 获取指定分片应有的大小，最后一个分片为剩余的字节数
+     */
+    public long getChunkLength(Integer chunkIndex) {
+        if (chunkIndex < chunks - 1) {
+            return chunkSize;
+        }
+        return fileSize - getChunkOffset(chunkIndex);
+    }
+}
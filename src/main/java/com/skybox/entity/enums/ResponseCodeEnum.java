@@ -19,7 +19,8 @@ public enum ResponseCodeEnum {
     CODE_901(901, "登录超时，请重新登录"),
     CODE_902(902, "分享连接不存在，或者已失效"),
     CODE_903(903, "分享验证失效，请重新验证"),
-    CODE_904(904, "网盘空间不足，请扩容");
+    CODE_904(904, "网盘空间不足，请扩容"),
+    CODE_905(905, "同时传输的文件过多，请稍后重试");
     private final Integer code;
 
     private final String msg;
@@ -126,6 +126,15 @@ public class FileInfoQuery extends BaseParam {
 
     private String[] excludeFileIdArray;
 
+    private String excludeFilePath;
+
+    /**
+     * 按主键分页：只查询主键（文件ID，用户ID）大于该值的记录
+     */
+    private String afterFileId;
+
+    private String afterUserId;
+
     private Boolean queryExpire;
 
     private Boolean queryNickName;
@@ -395,6 +404,30 @@ public class FileInfoQuery extends BaseParam {
         this.excludeFileIdArray = excludeFileIdArray;
     }
 
+    public String getExcludeFilePath() {
+        return excludeFilePath;
+    }
+
+    public void setExcludeFilePath(String excludeFilePath) {
+        this.excludeFilePath = excludeFilePath;
+    }
+
+    public String getAfterFileId() {
+        return afterFileId;
+    }
+
+    public void setAfterFileId(String afterFileId) {
+        this.afterFileId = afterFileId;
+    }
+
+    public String getAfterUserId() {
+        return afterUserId;
+    }
+
+    public void setAfterUserId(String afterUserId) {
+        this.afterUserId = afterUserId;
+    }
+
     public String[] getFilePidArray() {
         return filePidArray;
     }
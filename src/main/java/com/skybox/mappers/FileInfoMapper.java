@@ -47,10 +47,10 @@ public interface FileInfoMapper<T, P> extends BaseMapper<T, P> {
      * @param userId    用户ID
      * @param t         要更新的对象
      * @param oldStatus 旧的状态值
-     * @return void
+     * @return Integer
      * @description 根据文件ID、用户ID、旧的状态值和对象更新文件状态
      */
-    void updateFileStatusWithOldStatus(@Param("fileId") String fileId, @Param("userId") String userId, @Param("bean") T t, @Param("oldStatus") Integer oldStatus);
+    Integer updateFileStatusWithOldStatus(@Param("fileId") String fileId, @Param("userId") String userId, @Param("bean") T t, @Param("oldStatus") Integer oldStatus);
 
     /**
      * @param fileInfo    文件信息对象
@@ -87,5 +87,17 @@ public interface FileInfoMapper<T, P> extends BaseMapper<T, P> {
      */
     void deleteFileByUserId(@Param("userId") String userId);
 
+    /**
+     * @return Integer 以file_path开头的索引数
+     * @description 查询file_info表上以file_path开头的索引数
+     */
+    Integer selectFilePathIndexCount();
+
+    /**
+     * @return void
+     * @description 在file_path上创建索引，回收物理文件时按文件路径统计引用数
+     */
+    void createFilePathIndex();
+
 }
 
@@ -1,6 +1,9 @@
 package com.skybox.service;
 
+import com.skybox.entity.dto.ChunkUploadDto;
 import com.skybox.entity.dto.SessionWebUserDto;
+import com.skybox.entity.dto.TransferJobDto;
+import com.skybox.entity.dto.UploadInitDto;
 import com.skybox.entity.dto.UploadResultDto;
 import com.skybox.entity.po.FileInfo;
 import com.skybox.entity.query.FileInfoQuery;
@@ -8,6 +11,9 @@ import com.skybox.entity.vo.PaginationResultVO;
 import org.apache.ibatis.annotations.Param;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 /**
@@ -69,11 +75,53 @@ public interface FileInfoService {
      */
     Integer deleteFileInfoByFileIdAndUserId(String fileId, String userId);
 
+    /**
+     * 上传前协商分片大小和并发数
+     */
+    UploadInitDto uploadInit(SessionWebUserDto webUserDto, String fileId, Long fileSize);
+
     /**
      * 上传文件
      */
     UploadResultDto uploadFile(SessionWebUserDto webUserDto, String fileId, MultipartFile file, String fileName, String filePid, String fileMd5, Integer chunkIndex,
-                               Integer chunks);
+                               Integer chunks, Long fileSize, Long chunkSize);
+
+    /**
+     * 流式上传文件分片
+     */
+    UploadResultDto uploadFileStream(SessionWebUserDto webUserDto, String fileId, InputStream inputStream, String fileName, String filePid, String fileMd5,
+                                     Integer chunkIndex, Integer chunks, Long fileSize, Long chunkSize);
+
+    /**
+     * 开始异步上传文件分片
+     */
+    ChunkUploadDto beginUploadChunk(SessionWebUserDto webUserDto, String fileId, String fileName, String filePid, String fileMd5,
+                                    Integer chunkIndex, Integer chunks, Long fileSize, Long chunkSize);
+
+    /**
+     * 写入异步上传中已经到达的数据
+     */
+    void writeUploadChunk(ChunkUploadDto chunkUpload, ByteBuffer buffer) throws IOException;
+
+    /**
+     * 完成异步上传的文件分片
+     */
+    UploadResultDto finishUploadChunk(SessionWebUserDto webUserDto, ChunkUploadDto chunkUpload);
+
+    /**
+     * 中止异步上传的文件分片
+     */
+    void abortUploadChunk(SessionWebUserDto webUserDto, ChunkUploadDto chunkUpload);
+
+    /**
+     * 获取已上传的分片序号
+     */
+    List<Integer> getUploadedChunks(String userId, String fileId, Integer chunks);
+
+    /**
+     * 执行转码任务，返回任务是否已经结束
+     */
+    Boolean transferFile(TransferJobDto transferJob, Boolean lastAttempt);
 
     /**
      * 重命名
@@ -124,5 +172,10 @@ public interface FileInfoService {
      * 按用户ID删除文件
      */
     void deleteFileByUserId(@Param("userId") String userId);
+
+    /**
+     * 创建文件路径索引
+     */
+    void createFilePathIndex();
 }
 
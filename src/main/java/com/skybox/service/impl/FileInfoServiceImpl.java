@@ -1,10 +1,18 @@
 package com.skybox.service.impl;
 
+import com.skybox.component.BandwidthLimiter;
+import com.skybox.component.HlsRenditionGenerator;
+import com.skybox.component.ProcessRunner;
 import com.skybox.component.RedisComponent;
+import com.skybox.component.UploadDigestComponent;
 import com.skybox.entity.config.AppConfig;
 import com.skybox.entity.constants.Constants;
+import com.skybox.entity.dto.ChunkUploadDto;
 import com.skybox.entity.dto.SessionWebUserDto;
+import com.skybox.entity.dto.TransferJobDto;
+import com.skybox.entity.dto.UploadInitDto;
 import com.skybox.entity.dto.UploadResultDto;
+import com.skybox.entity.dto.UploadSessionDto;
 import com.skybox.entity.dto.UserSpaceDto;
 import com.skybox.entity.enums.*;
 import com.skybox.entity.po.FileInfo;
@@ -18,14 +26,15 @@ import com.skybox.mappers.FileInfoMapper;
 import com.skybox.mappers.UserInfoMapper;
 import com.skybox.service.FileInfoService;
 import com.skybox.utils.DateUtil;
-import com.skybox.utils.ProcessUtils;
 import com.skybox.utils.ScaleFilter;
 import com.skybox.utils.StringTools;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.input.BoundedInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.annotation.Lazy;
-import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.transaction.support.TransactionSynchronization;
@@ -34,8 +43,19 @@ import org.springframework.web.multipart.MultipartFile;
 
 import javax.annotation.Resource;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.*;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -72,52 +92,84 @@ public class FileInfoServiceImpl implements FileInfoService {
     @Resource
     private RedisComponent redisComponent;
 
-    public static void union(String dirPath, String toFilePath, String fileName, boolean delSource) throws BusinessException {
+    @Resource
+    private UploadDigestComponent uploadDigestComponent;
+
+    @Resource
+    private BandwidthLimiter bandwidthLimiter;
+
+    @Resource
+    private ProcessRunner processRunner;
+
+    @Resource
+    private HlsRenditionGenerator hlsRenditionGenerator;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    /**
+     * @param dirPath      分片所在目录
+     * @param toFilePath   合并后的目标文件路径
+     * @param fileName     文件名称，用于日志
+     * @param chunks       上传时记录的分片数
+     * @param expectedSize 上传时记录的总大小
+     * @param delSource    合并结束后是否删除分片目录
+     * @return void
+     * @description 合并分片文件，使用FileChannel.transferTo直接在内核中拷贝，避免经过用户态缓冲区。
+     * 按记录的分片数合并0..n-1的分片并校验总大小，没有记录分片数或总大小时无法校验，直接失败
+     */
+    public static void union(String dirPath, String toFilePath, String fileName, Integer chunks, Long expectedSize, boolean delSource) throws BusinessException {
         File dir = new File(dirPath);
         if (!dir.exists()) {
             throw new BusinessException("目录不存在");
         }
-        File[] fileList = dir.listFiles();
         File targetFile = new File(toFilePath);
-        RandomAccessFile writeFile = null;
         try {
-            writeFile = new RandomAccessFile(targetFile, "rw");
-            byte[] b = new byte[1024 * 10];
-            for (int i = 0; i < fileList.length; i++) {
-                int len = -1;
-                //创建读块文件的对象
+            if (chunks == null || chunks <= 0 || expectedSize == null) {
+                logger.error("合并文件:{}失败，没有记录分片数:{}或总大小:{}", fileName, chunks, expectedSize);
+                throw new BusinessException("合并文件" + fileName + "出错了，分片信息不存在");
+            }
+            //校验分片数量和总大小，分片以0..n-1命名，目录中的其他文件不参与合并
+            long chunkTotalSize = 0;
+            for (int i = 0; i < chunks; i++) {
                 File chunkFile = new File(dirPath + File.separator + i);
-                RandomAccessFile readFile = null;
-                try {
-                    readFile = new RandomAccessFile(chunkFile, "r");
-                    while ((len = readFile.read(b)) != -1) {
-                        writeFile.write(b, 0, len);
+                if (!chunkFile.isFile()) {
+                    logger.error("合并文件:{}失败，缺少分片:{}", fileName, i);
+                    throw new BusinessException("合并文件" + fileName + "出错了，分片不完整");
+                }
+                chunkTotalSize += chunkFile.length();
+            }
+            if (chunkTotalSize != expectedSize) {
+                logger.error("合并文件:{}失败，分片总大小:{}与记录大小:{}不一致", fileName, chunkTotalSize, expectedSize);
+                throw new BusinessException("合并文件" + fileName + "出错了，分片大小不一致");
+            }
+            try (FileChannel writeChannel = FileChannel.open(targetFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (int i = 0; i < chunks; i++) {
+                    //创建读块文件的通道，按顺序追加到目标文件末尾
+                    try (FileChannel readChannel = FileChannel.open(new File(dirPath + File.separator + i).toPath(), StandardOpenOption.READ)) {
+                        long size = readChannel.size();
+                        long position = 0;
+                        //transferTo单次可能传输不完整，需要循环直到整个分片写入
+                        while (position < size) {
+                            position += readChannel.transferTo(position, size - position, writeChannel);
+                        }
                     }
-                } catch (Exception e) {
-                    logger.error("合并分片失败", e);
-                    throw new BusinessException("合并文件失败");
-                } finally {
-                    readFile.close();
+                }
+                if (writeChannel.size() != chunkTotalSize) {
+                    throw new BusinessException("合并文件" + fileName + "出错了，合并后大小不一致");
                 }
             }
+        } catch (BusinessException e) {
+            throw e;
         } catch (Exception e) {
             logger.error("合并文件:{}失败", fileName, e);
             throw new BusinessException("合并文件" + fileName + "出错了");
         } finally {
-            try {
-                if (null != writeFile) {
-                    writeFile.close();
-                }
-            } catch (IOException e) {
-                logger.error("关闭流失败", e);
-            }
-            if (delSource) {
-                if (dir.exists()) {
-                    try {
-                        FileUtils.deleteDirectory(dir);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+            if (delSource && dir.exists()) {
+                try {
+                    FileUtils.deleteDirectory(dir);
+                } catch (IOException e) {
+                    logger.error("删除分片目录失败", e);
                 }
             }
         }
@@ -217,115 +269,384 @@ public class FileInfoServiceImpl implements FileInfoService {
      * @param fileMd5
      * @param chunkIndex
      * @param chunks
+     * @param fileSize
+     * @param chunkSize
      * @return UploadResultDto
-     * @description 处理文件上传请求，并在数据库中记录文件信息
+     * @description 处理文件上传请求，并在数据库中记录文件信息。传入fileSize和chunkSize时分片直接写入预分配的目标文件。
+     * 读取分片时不开启事务，只有秒传和记录数据库时才在事务中执行
      */
     @Override
-    @Transactional(rollbackFor = Exception.class)
     public UploadResultDto uploadFile(SessionWebUserDto webUserDto, String fileId, MultipartFile file, String fileName, String filePid, String fileMd5,
-                                      Integer chunkIndex, Integer chunks) {
-        File tempFileFolder = null;
+                                      Integer chunkIndex, Integer chunks, Long fileSize, Long chunkSize) {
+        return uploadChunk(webUserDto, fileId, file, null, file.getSize(), fileName, filePid, fileMd5, chunkIndex, chunks, fileSize, chunkSize);
+    }
+
+    /**
+     * @param webUserDto
+     * @param fileId
+     * @param inputStream 请求体中分片内容的流
+     * @param fileName
+     * @param filePid
+     * @param fileMd5
+     * @param chunkIndex
+     * @param chunks
+     * @param fileSize
+     * @param chunkSize
+     * @return UploadResultDto
+     * @description 流式上传分片，分片内容不经过容器的临时文件，边读边校验空间、计算MD5并写入预分配的目标文件，必须传入fileSize和chunkSize。
+     * 从网络读取分片期间不开启事务、不占用数据库连接，只有秒传和记录数据库时才在事务中执行
+     */
+    @Override
+    public UploadResultDto uploadFileStream(SessionWebUserDto webUserDto, String fileId, InputStream inputStream, String fileName, String filePid, String fileMd5,
+                                            Integer chunkIndex, Integer chunks, Long fileSize, Long chunkSize) {
+        long chunkLength = getDirectChunkLength(chunkIndex, chunks, fileSize, chunkSize);
+        return uploadChunk(webUserDto, fileId, null, inputStream, chunkLength, fileName, filePid, fileMd5, chunkIndex, chunks, fileSize, chunkSize);
+    }
+
+    /**
+     * @param webUserDto
+     * @param fileId
+     * @param fileName
+     * @param filePid
+     * @param fileMd5
+     * @param chunkIndex
+     * @param chunks
+     * @param fileSize
+     * @param chunkSize
+     * @return ChunkUploadDto
+     * @description 开始异步上传一个分片：完成参数校验、秒传、空间预留并打开目标文件，之后请求体中有数据可读时由writeUploadChunk写入。
+     * 秒传成功时返回的对象中已带有上传结果
+     */
+    @Override
+    public ChunkUploadDto beginUploadChunk(SessionWebUserDto webUserDto, String fileId, String fileName, String filePid, String fileMd5,
+                                           Integer chunkIndex, Integer chunks, Long fileSize, Long chunkSize) {
+        long chunkLength = getDirectChunkLength(chunkIndex, chunks, fileSize, chunkSize);
+        checkChunkSize(chunks, chunkLength, chunkSize);
+        if (StringTools.isEmpty(fileId)) {
+            fileId = StringTools.getRandomString(Constants.LENGTH_10);
+        }
+        ChunkUploadDto chunkUpload = new ChunkUploadDto();
+        chunkUpload.setFileId(fileId);
+        chunkUpload.setFileName(fileName);
+        chunkUpload.setFilePid(filePid);
+        chunkUpload.setFileMd5(fileMd5);
+        chunkUpload.setChunkIndex(chunkIndex);
+        chunkUpload.setChunks(chunks);
+        chunkUpload.setChunkLength(chunkLength);
+        chunkUpload.setCreateTime(new Date());
+        UserSpaceDto spaceDto = redisComponent.getUserSpaceUse(webUserDto.getUserId());
+        if (chunkIndex == 0) {
+            UploadResultDto resultDto = fileInfoService.instantUpload(webUserDto, fileId, fileName, filePid, fileMd5, spaceDto, chunkUpload.getCreateTime());
+            if (resultDto != null) {
+                chunkUpload.setResultDto(resultDto);
+                return chunkUpload;
+            }
+        }
+        //异步上传不在容器线程中等待令牌，由读取请求体的监听按许可限速
+        chunkUpload.setPermit(beginTransfer(webUserDto));
+        try {
+            chunkUpload.setReserved(reserveChunk(webUserDto.getUserId(), fileId, chunkIndex, chunkLength, spaceDto));
+            UploadSessionDto uploadSession = getOrCreateUploadSession(webUserDto.getUserId(), fileId, fileName, chunkUpload.getCreateTime(), fileSize, chunkSize, chunks);
+            if (chunkLength != uploadSession.getChunkLength(chunkIndex)) {
+                throw new BusinessException(ResponseCodeEnum.CODE_600);
+            }
+            chunkUpload.setUploadSession(uploadSession);
+            File targetFile = new File(appConfig.getProjectFolder() + Constants.FILE_FOLDER_FILE + uploadSession.getFilePath());
+            chunkUpload.setFileChannel(FileChannel.open(targetFile.toPath(), StandardOpenOption.WRITE));
+            chunkUpload.setDigest(uploadDigestComponent.beginChunk(webUserDto.getUserId() + fileId, chunkIndex));
+            return chunkUpload;
+        } catch (BusinessException e) {
+            abortUploadChunk(webUserDto, chunkUpload);
+            throw e;
+        } catch (Exception e) {
+            abortUploadChunk(webUserDto, chunkUpload);
+            logger.error("文件上传失败", e);
+            throw new BusinessException("文件上传失败");
+        }
+    }
+
+    /**
+     * @param chunkUpload
+     * @param buffer
+     * @return void
+     * @description 写入异步上传中已经到达的一段数据，按顺序到达的分片同时计算MD5
+     */
+    @Override
+    public void writeUploadChunk(ChunkUploadDto chunkUpload, ByteBuffer buffer) throws IOException {
+        if (chunkUpload.getWritten() + buffer.remaining() > chunkUpload.getChunkLength()) {
+            throw new BusinessException("分片大小不一致");
+        }
+        if (chunkUpload.getDigest() != null) {
+            chunkUpload.getDigest().update(buffer.duplicate());
+        }
+        long offset = chunkUpload.getUploadSession().getChunkOffset(chunkUpload.getChunkIndex());
+        while (buffer.hasRemaining()) {
+            chunkUpload.setWritten(chunkUpload.getWritten() + chunkUpload.getFileChannel().write(buffer, offset + chunkUpload.getWritten()));
+        }
+    }
+
+    /**
+     * @param webUserDto
+     * @param chunkUpload
+     * @return UploadResultDto
+     * @description 异步上传的请求体读取完毕后记录分片，所有分片都收到后记录数据库并创建转码任务
+     */
+    @Override
+    public UploadResultDto finishUploadChunk(SessionWebUserDto webUserDto, ChunkUploadDto chunkUpload) {
+        //已经因为出错或超时而中止
+        if (!chunkUpload.tryClose()) {
+            throw new BusinessException("文件上传失败");
+        }
+        if (chunkUpload.getPermit() != null) {
+            chunkUpload.getPermit().close();
+        }
+        String userId = webUserDto.getUserId();
+        String fileId = chunkUpload.getFileId();
+        boolean chunkWritten = chunkUpload.getWritten().equals(chunkUpload.getChunkLength());
+        closeChunkChannel(chunkUpload);
+        if (chunkUpload.getDigest() != null) {
+            uploadDigestComponent.endChunk(userId + fileId, chunkWritten);
+        }
+        if (!chunkWritten) {
+            if (chunkUpload.getReserved()) {
+                redisComponent.releaseFileTempSize(userId, fileId, chunkUpload.getChunkLength());
+            }
+            throw new BusinessException("分片大小不一致");
+        }
+        //记录收到的分片，并发重传的同一分片只保留一份预留
+        if (!redisComponent.markChunkUploaded(userId, fileId, chunkUpload.getChunkIndex()) && chunkUpload.getReserved()) {
+            redisComponent.releaseFileTempSize(userId, fileId, chunkUpload.getChunkLength());
+        }
+        return completeUpload(webUserDto, fileId, chunkUpload.getFileName(), chunkUpload.getFilePid(), chunkUpload.getFileMd5(), chunkUpload.getChunks(),
+                chunkUpload.getUploadSession(), chunkUpload.getCreateTime());
+    }
+
+    /**
+     * @param webUserDto
+     * @param chunkUpload
+     * @return void
+     * @description 中止异步上传的分片，释放预留的空间；已写入目标文件的数据由重传的分片覆盖
+     */
+    @Override
+    public void abortUploadChunk(SessionWebUserDto webUserDto, ChunkUploadDto chunkUpload) {
+        if (!chunkUpload.tryClose()) {
+            return;
+        }
+        if (chunkUpload.getPermit() != null) {
+            chunkUpload.getPermit().close();
+        }
+        closeChunkChannel(chunkUpload);
+        if (chunkUpload.getDigest() != null) {
+            uploadDigestComponent.endChunk(webUserDto.getUserId() + chunkUpload.getFileId(), false);
+        }
+        if (chunkUpload.getReserved()) {
+            redisComponent.releaseFileTempSize(webUserDto.getUserId(), chunkUpload.getFileId(), chunkUpload.getChunkLength());
+        }
+    }
+
+    /**
+     * @param chunkUpload
+     * @return void
+     * @description 关闭异步上传写入目标文件的通道，还没有打开时跳过；关闭失败不影响已写入的数据，只记录日志
+     */
+    private void closeChunkChannel(ChunkUploadDto chunkUpload) {
+        if (chunkUpload.getFileChannel() == null) {
+            return;
+        }
+        try {
+            chunkUpload.getFileChannel().close();
+        } catch (IOException e) {
+            logger.warn("关闭分片文件失败，文件Id:{}", chunkUpload.getFileId(), e);
+        }
+    }
+
+    /**
+     * @param chunkIndex
+     * @param chunks
+     * @param fileSize
+     * @param chunkSize
+     * @return long
+     * @description 计算直接写入目标文件的分片大小，按与上传会话相同的规则计算，最后一个分片为剩余的字节数
+     */
+    private long getDirectChunkLength(Integer chunkIndex, Integer chunks, Long fileSize, Long chunkSize) {
+        if (fileSize == null || chunkSize == null || chunkSize <= 0 || chunkIndex < 0 || chunkIndex >= chunks
+                || (long) chunkIndex * chunkSize >= fileSize) {
+            throw new BusinessException(ResponseCodeEnum.CODE_600);
+        }
+        return chunkIndex < chunks - 1 ? chunkSize : fileSize - (long) chunkIndex * chunkSize;
+    }
+
+    /**
+     * @param chunks
+     * @param chunkLength
+     * @param chunkSize
+     * @return void
+     * @description 分片大小需在协商的范围内，只有一个分片时不受最小值限制
+     */
+    private void checkChunkSize(Integer chunks, long chunkLength, Long chunkSize) {
+        if (chunkLength > appConfig.getUploadChunkMaxSize() || chunkSize != null && (chunkSize > appConfig.getUploadChunkMaxSize()
+                || chunks > 1 && chunkSize < appConfig.getUploadChunkMinSize())) {
+            throw new BusinessException(ResponseCodeEnum.CODE_600);
+        }
+    }
+
+    /**
+     * @param userId
+     * @param fileId
+     * @param chunkIndex
+     * @param chunkLength
+     * @param spaceDto
+     * @return boolean
+     * @description 判断磁盘空间并预留分片占用的空间，重传已收到的分片不重复预留，返回是否新预留了空间
+     */
+    private boolean reserveChunk(String userId, String fileId, Integer chunkIndex, long chunkLength, UserSpaceDto spaceDto) {
+        Long reserveResult = redisComponent.reserveFileTempSize(userId, fileId, chunkIndex, chunkLength, spaceDto);
+        if (RedisComponent.RESERVE_FAIL.equals(reserveResult)) {
+            throw new BusinessException(ResponseCodeEnum.CODE_904);
+        }
+        return RedisComponent.RESERVE_SUCCESS.equals(reserveResult);
+    }
+
+    /**
+     * @param webUserDto
+     * @param fileId
+     * @param fileName
+     * @param filePid
+     * @param fileMd5
+     * @param spaceDto
+     * @param curDate
+     * @return UploadResultDto
+     * @description 秒传：已有相同MD5的文件时直接新增一条引用该文件的记录，没有时返回null。通过代理调用以在事务中执行
+     */
+    @Transactional(rollbackFor = Exception.class)
+    public UploadResultDto instantUpload(SessionWebUserDto webUserDto, String fileId, String fileName, String filePid, String fileMd5,
+                                          UserSpaceDto spaceDto, Date curDate) {
+        FileInfo dbFile = findFileByMd5(fileMd5);
+        if (dbFile == null) {
+            return null;
+        }
+        //判断文件状态
+        if (dbFile.getFileSize() + spaceDto.getUseSpace() > spaceDto.getTotalSpace()) {
+            throw new BusinessException(ResponseCodeEnum.CODE_904);
+        }
+        dbFile.setFileId(fileId);
+        dbFile.setFilePid(filePid);
+        dbFile.setUserId(webUserDto.getUserId());
+        dbFile.setFileMd5(null);
+        dbFile.setCreateTime(curDate);
+        dbFile.setLastUpdateTime(curDate);
+        dbFile.setStatus(FileStatusEnums.USING.getStatus());
+        dbFile.setDelFlag(FileDelFlagEnums.USING.getFlag());
+        dbFile.setFileMd5(fileMd5);
+        fileName = autoRename(filePid, webUserDto.getUserId(), fileName);
+        dbFile.setFileName(fileName);
+        //物理文件正在被回收时按普通上传处理
+        if (!retainBlobs(Collections.singletonList(dbFile))) {
+            return null;
+        }
+        this.fileInfoMapper.insert(dbFile);
+        //更新用户空间使用
+        updateUserSpace(webUserDto, dbFile.getFileSize());
+
+        UploadResultDto resultDto = new UploadResultDto();
+        resultDto.setFileId(fileId);
+        resultDto.setStatus(UploadStatusEnums.UPLOAD_SECONDS.getCode());
+        return resultDto;
+    }
+
+    /**
+     * @param webUserDto
+     * @param fileId
+     * @param file        表单上传的分片，流式上传时为null
+     * @param inputStream 流式上传的分片内容，表单上传时为null
+     * @param chunkLength 分片大小
+     * @param fileName
+     * @param filePid
+     * @param fileMd5
+     * @param chunkIndex
+     * @param chunks
+     * @param fileSize
+     * @param chunkSize
+     * @return UploadResultDto
+     * @description 保存一个分片，所有分片都收到后记录数据库并创建转码任务
+     */
+    private UploadResultDto uploadChunk(SessionWebUserDto webUserDto, String fileId, MultipartFile file, InputStream inputStream, long chunkLength,
+                                        String fileName, String filePid, String fileMd5, Integer chunkIndex, Integer chunks, Long fileSize, Long chunkSize) {
+        File chunkFile = null;
+        Boolean chunkReserved = false;
         Boolean uploadSuccess = true;
+        BandwidthLimiter.Permit permit = null;
         try {
-            UploadResultDto resultDto = new UploadResultDto();
             if (StringTools.isEmpty(fileId)) {
                 fileId = StringTools.getRandomString(Constants.LENGTH_10);
             }
-            resultDto.setFileId(fileId);
+            if (chunkIndex < 0 || chunkIndex >= chunks) {
+                throw new BusinessException(ResponseCodeEnum.CODE_600);
+            }
+            checkChunkSize(chunks, chunkLength, chunkSize);
             Date curDate = new Date();
             UserSpaceDto spaceDto = redisComponent.getUserSpaceUse(webUserDto.getUserId());
             if (chunkIndex == 0) {
-                FileInfoQuery infoQuery = new FileInfoQuery();
-                infoQuery.setFileMd5(fileMd5);
-                infoQuery.setSimplePage(new SimplePage(0, 1));
-                infoQuery.setStatus(FileStatusEnums.USING.getStatus());
-                List<FileInfo> dbFileList = this.fileInfoMapper.selectList(infoQuery);
                 //秒传
-                if (!dbFileList.isEmpty()) {
-                    FileInfo dbFile = dbFileList.get(0);
-                    //判断文件状态
-                    if (dbFile.getFileSize() + spaceDto.getUseSpace() > spaceDto.getTotalSpace()) {
-                        throw new BusinessException(ResponseCodeEnum.CODE_904);
-                    }
-                    dbFile.setFileId(fileId);
-                    dbFile.setFilePid(filePid);
-                    dbFile.setUserId(webUserDto.getUserId());
-                    dbFile.setFileMd5(null);
-                    dbFile.setCreateTime(curDate);
-                    dbFile.setLastUpdateTime(curDate);
-                    dbFile.setStatus(FileStatusEnums.USING.getStatus());
-                    dbFile.setDelFlag(FileDelFlagEnums.USING.getFlag());
-                    dbFile.setFileMd5(fileMd5);
-                    fileName = autoRename(filePid, webUserDto.getUserId(), fileName);
-                    dbFile.setFileName(fileName);
-                    this.fileInfoMapper.insert(dbFile);
-                    resultDto.setStatus(UploadStatusEnums.UPLOAD_SECONDS.getCode());
-                    //更新用户空间使用
-                    updateUserSpace(webUserDto, dbFile.getFileSize());
-
+                UploadResultDto resultDto = fileInfoService.instantUpload(webUserDto, fileId, fileName, filePid, fileMd5, spaceDto, curDate);
+                if (resultDto != null) {
                     return resultDto;
                 }
             }
-            //暂存在临时目录
-            String tempFolderName = appConfig.getProjectFolder() + Constants.FILE_FOLDER_TEMP;
             String currentUserFolderName = webUserDto.getUserId() + fileId;
-            //创建临时目录
-            tempFileFolder = new File(tempFolderName + currentUserFolderName);
-            if (!tempFileFolder.exists()) {
-                tempFileFolder.mkdirs();
+            permit = beginTransfer(webUserDto);
+            chunkReserved = reserveChunk(webUserDto.getUserId(), fileId, chunkIndex, chunkLength, spaceDto);
+
+            UploadSessionDto uploadSession = null;
+            if (fileSize != null && chunkSize != null) {
+                //已知文件大小，分片直接写入预分配的目标文件，省去临时目录和合并
+                uploadSession = getOrCreateUploadSession(webUserDto.getUserId(), fileId, fileName, curDate, fileSize, chunkSize, chunks);
+                if (chunkLength != uploadSession.getChunkLength(chunkIndex)) {
+                    throw new BusinessException(ResponseCodeEnum.CODE_600);
+                }
+            } else if (file == null) {
+                //流式上传没有容器保存的文件，只能直接写入目标文件
+                throw new BusinessException(ResponseCodeEnum.CODE_600);
+            } else {
+                //暂存在临时目录
+                String tempFolderName = appConfig.getProjectFolder() + Constants.FILE_FOLDER_TEMP;
+                //创建临时目录
+                File tempFileFolder = new File(tempFolderName + currentUserFolderName);
+                if (!tempFileFolder.exists()) {
+                    tempFileFolder.mkdirs();
+                }
+                chunkFile = new File(tempFileFolder.getPath() + "/" + chunkIndex);
             }
-
-            //判断磁盘空间
-            Long currentTempSize = redisComponent.getFileTempSize(webUserDto.getUserId(), fileId);
-            if (file.getSize() + currentTempSize + spaceDto.getUseSpace() > spaceDto.getTotalSpace()) {
-                throw new BusinessException(ResponseCodeEnum.CODE_904);
+            //按顺序到达的分片边写边计算MD5，乱序到达的分片直接写入，等前面的分片补齐后再从磁盘补算
+            MessageDigest chunkDigest = uploadDigestComponent.beginChunk(currentUserFolderName, chunkIndex);
+            boolean chunkWritten = false;
+            try (InputStream sourceInputStream = file == null ? inputStream : file.getInputStream()) {
+                //表单上传的分片在进入应用前已经由容器接收完毕，限速不能减少网络占用，只会让线程持有传输数等待，因此只对流式上传限速
+                InputStream limitedInputStream = file == null ? permit.wrap(sourceInputStream) : sourceInputStream;
+                InputStream chunkInputStream = chunkDigest == null ? limitedInputStream : new DigestInputStream(limitedInputStream, chunkDigest);
+                if (uploadSession != null) {
+                    File targetFile = new File(appConfig.getProjectFolder() + Constants.FILE_FOLDER_FILE + uploadSession.getFilePath());
+                    writeChunk(chunkInputStream, chunkLength, targetFile, uploadSession.getChunkOffset(chunkIndex));
+                } else {
+                    Files.copy(chunkInputStream, chunkFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    if (chunkFile.length() != chunkLength) {
+                        throw new BusinessException("分片大小不一致");
+                    }
+                }
+                chunkWritten = true;
+            } finally {
+                if (chunkDigest != null) {
+                    uploadDigestComponent.endChunk(currentUserFolderName, chunkWritten);
+                }
             }
-
-            File newFile = new File(tempFileFolder.getPath() + "/" + chunkIndex);
-            file.transferTo(newFile);
-            //保存临时大小
-            redisComponent.saveFileTempSize(webUserDto.getUserId(), fileId, file.getSize());
-            //不是最后一个分片，直接返回
-            if (chunkIndex < chunks - 1) {
-                resultDto.setStatus(UploadStatusEnums.UPLOADING.getCode());
-                return resultDto;
+            //记录收到的分片，并发重传的同一分片只保留一份预留
+            if (!redisComponent.markChunkUploaded(webUserDto.getUserId(), fileId, chunkIndex) && chunkReserved) {
+                redisComponent.releaseFileTempSize(webUserDto.getUserId(), fileId, chunkLength);
             }
-            //最后一个分片上传完成，记录数据库，异步合并分片
-            String month = DateUtil.format(curDate, DateTimePatternEnum.YYYYMM.getPattern());
-            String fileSuffix = StringTools.getFileSuffix(fileName);
-            //真实文件名
-            String realFileName = currentUserFolderName + fileSuffix;
-            FileTypeEnums fileTypeEnum = FileTypeEnums.getFileTypeBySuffix(fileSuffix);
-            //自动重命名
-            fileName = autoRename(filePid, webUserDto.getUserId(), fileName);
-            FileInfo fileInfo = new FileInfo();
-            fileInfo.setFileId(fileId);
-            fileInfo.setUserId(webUserDto.getUserId());
-            fileInfo.setFileMd5(fileMd5);
-            fileInfo.setFileName(fileName);
-            fileInfo.setFilePath(month + "/" + realFileName);
-            fileInfo.setFilePid(filePid);
-            fileInfo.setCreateTime(curDate);
-            fileInfo.setLastUpdateTime(curDate);
-            fileInfo.setFileCategory(fileTypeEnum.getCategory().getCategory());
-            fileInfo.setFileType(fileTypeEnum.getType());
-            fileInfo.setStatus(FileStatusEnums.TRANSFER.getStatus());
-            fileInfo.setFolderType(FileFolderTypeEnums.FILE.getType());
-            fileInfo.setDelFlag(FileDelFlagEnums.USING.getFlag());
-            this.fileInfoMapper.insert(fileInfo);
-
-            Long totalSize = redisComponent.getFileTempSize(webUserDto.getUserId(), fileId);
-            updateUserSpace(webUserDto, totalSize);
-
-            resultDto.setStatus(UploadStatusEnums.UPLOAD_FINISH.getCode());
-            //事务提交后调用异步方法
-            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
-                @Override
-                public void afterCommit() {
-                    fileInfoService.transferFile(fileInfo.getFileId(), webUserDto);
-                }
-            });
-            return resultDto;
+            chunkReserved = false;
+            //分片已记录到位图，之后失败也不能删除该分片
+            chunkFile = null;
+            return completeUpload(webUserDto, fileId, fileName, filePid, fileMd5, chunks, uploadSession, curDate);
         } catch (BusinessException e) {
             uploadSuccess = false;
             logger.error("文件上传失败", e);
@@ -335,15 +656,374 @@ public class FileInfoServiceImpl implements FileInfoService {
             logger.error("文件上传失败", e);
             throw new BusinessException("文件上传失败");
         } finally {
-            //如果上传失败，清除临时目录
-            if (tempFileFolder != null && !uploadSuccess) {
-                try {
-                    FileUtils.deleteDirectory(tempFileFolder);
-                } catch (IOException e) {
-                    logger.error("删除临时目录失败");
+            //如果上传失败，只清除本次的分片并释放预留的空间，已收到的分片保留用于断点续传
+            if (chunkFile != null && !uploadSuccess) {
+                chunkFile.delete();
+            }
+            if (chunkReserved && !uploadSuccess) {
+                redisComponent.releaseFileTempSize(webUserDto.getUserId(), fileId, chunkLength);
+            }
+            if (permit != null) {
+                permit.close();
+            }
+        }
+    }
+
+    /**
+     * @param webUserDto
+     * @return BandwidthLimiter.Permit
+     * @description 开始上传一个分片，用户同时进行的传输数达到上限时拒绝。流式上传和异步上传按返回的许可限速，表单上传不限速
+     */
+    private BandwidthLimiter.Permit beginTransfer(SessionWebUserDto webUserDto) {
+        BandwidthLimiter.Permit permit = bandwidthLimiter.tryBeginTransfer(webUserDto.getUserId(), Boolean.TRUE.equals(webUserDto.getAdmin()), null);
+        if (permit == null) {
+            throw new BusinessException(ResponseCodeEnum.CODE_905);
+        }
+        return permit;
+    }
+
+    /**
+     * @param webUserDto
+     * @param fileId
+     * @param fileName
+     * @param filePid
+     * @param fileMd5
+     * @param chunks
+     * @param uploadSession 分片直接写入目标文件时的上传会话，暂存在临时目录时为null
+     * @param curDate
+     * @return UploadResultDto
+     * @description 补算已收到分片的MD5，所有分片都收到后在事务中记录数据库，事务提交后创建转码任务。补算和计算MD5需要读取磁盘，在事务之外执行
+     */
+    private UploadResultDto completeUpload(SessionWebUserDto webUserDto, String fileId, String fileName, String filePid, String fileMd5, Integer chunks,
+                                           UploadSessionDto uploadSession, Date curDate) {
+        UploadResultDto resultDto = new UploadResultDto();
+        resultDto.setFileId(fileId);
+        String currentUserFolderName = webUserDto.getUserId() + fileId;
+        UploadDigestComponent.ChunkChecker chunkChecker = getChunkChecker(webUserDto.getUserId(), fileId);
+        UploadDigestComponent.ChunkReader chunkReader = getChunkReader(webUserDto.getUserId(), fileId, uploadSession);
+        uploadDigestComponent.catchUp(currentUserFolderName, chunkChecker, chunkReader);
+        //分片可以乱序、并发上传，所有分片都收到之前直接返回
+        if (redisComponent.getUploadedChunkCount(webUserDto.getUserId(), fileId) < chunks) {
+            resultDto.setStatus(UploadStatusEnums.UPLOADING.getCode());
+            return resultDto;
+        }
+        //最后几个分片并发到达时，只由一个请求负责入库
+        if (!redisComponent.lockUploadFinish(webUserDto.getUserId(), fileId)) {
+            resultDto.setStatus(UploadStatusEnums.UPLOADING.getCode());
+            return resultDto;
+        }
+        try {
+            //所有分片都已计算进摘要，摘要状态丢失时为null，由转码时读取文件计算
+            String serverMd5 = uploadDigestComponent.finish(currentUserFolderName, chunks, chunkChecker, chunkReader);
+            return fileInfoService.saveUploadedFile(webUserDto, fileId, fileName, filePid, fileMd5, chunks, uploadSession, curDate, serverMd5);
+        } catch (RuntimeException e) {
+            //入库失败，释放锁以便客户端重传最后的分片
+            redisComponent.unlockUploadFinish(webUserDto.getUserId(), fileId);
+            throw e;
+        }
+    }
+
+    /**
+     * @param webUserDto
+     * @param fileId
+     * @param fileName
+     * @param filePid
+     * @param fileMd5
+     * @param chunks        分片数，记录到转码任务中用于合并时校验
+     * @param uploadSession 分片直接写入目标文件时的上传会话，暂存在临时目录时为null
+     * @param curDate
+     * @param serverMd5     服务端计算的MD5，摘要状态丢失时为null
+     * @return UploadResultDto
+     * @description 所有分片都收到后记录数据库并扣减用户空间，事务提交后清除上传状态并创建转码任务。通过代理调用以在事务中执行
+     */
+    @Transactional(rollbackFor = Exception.class)
+    public UploadResultDto saveUploadedFile(SessionWebUserDto webUserDto, String fileId, String fileName, String filePid, String fileMd5, Integer chunks,
+                                            UploadSessionDto uploadSession, Date curDate, String serverMd5) {
+        UploadResultDto resultDto = new UploadResultDto();
+        resultDto.setFileId(fileId);
+        String currentUserFolderName = webUserDto.getUserId() + fileId;
+        //全部分片上传完成，记录数据库，异步合并分片
+        String fileSuffix = StringTools.getFileSuffix(fileName);
+        String filePath;
+        if (uploadSession != null) {
+            filePath = uploadSession.getFilePath();
+        } else {
+            String month = DateUtil.format(curDate, DateTimePatternEnum.YYYYMM.getPattern());
+            //真实文件名
+            filePath = month + "/" + currentUserFolderName + fileSuffix;
+        }
+        FileTypeEnums fileTypeEnum = FileTypeEnums.getFileTypeBySuffix(fileSuffix);
+        //自动重命名
+        fileName = autoRename(filePid, webUserDto.getUserId(), fileName);
+        FileInfo fileInfo = new FileInfo();
+        fileInfo.setFileId(fileId);
+        fileInfo.setUserId(webUserDto.getUserId());
+        fileInfo.setFileMd5(fileMd5);
+        fileInfo.setFileName(fileName);
+        fileInfo.setFilePath(filePath);
+        fileInfo.setFilePid(filePid);
+        fileInfo.setCreateTime(curDate);
+        fileInfo.setLastUpdateTime(curDate);
+        fileInfo.setFileCategory(fileTypeEnum.getCategory().getCategory());
+        fileInfo.setFileType(fileTypeEnum.getType());
+        fileInfo.setStatus(FileStatusEnums.TRANSFER.getStatus());
+        fileInfo.setFolderType(FileFolderTypeEnums.FILE.getType());
+        fileInfo.setDelFlag(FileDelFlagEnums.USING.getFlag());
+        this.fileInfoMapper.insert(fileInfo);
+        updateBlobRef(Collections.singletonList(fileInfo), true);
+
+        Long totalSize = redisComponent.getFileTempSize(webUserDto.getUserId(), fileId);
+        updateUserSpace(webUserDto, totalSize);
+
+        resultDto.setStatus(UploadStatusEnums.UPLOAD_FINISH.getCode());
+        //事务提交后保存转码任务，由转码任务定时取出执行，服务重启后未完成的任务会继续执行
+        TransferJobDto transferJob = new TransferJobDto();
+        transferJob.setUserId(webUserDto.getUserId());
+        transferJob.setFileId(fileId);
+        transferJob.setServerMd5(serverMd5);
+        transferJob.setFileType(fileTypeEnum.getType());
+        transferJob.setFileSize(totalSize);
+        transferJob.setChunks(chunks);
+        String userId = webUserDto.getUserId();
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                //事务提交后才清除上传状态，回滚时客户端仍可以使用原来的会话和预留空间重传
+                redisComponent.removeFileTempSize(userId, fileId);
+                if (uploadSession != null) {
+                    redisComponent.removeUploadSession(userId, fileId);
+                    redisComponent.removeUploadTarget(filePath);
+                }
+                redisComponent.removeUploadedChunks(userId, fileId);
+                redisComponent.enqueueTransferJob(transferJob, 0);
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                //回滚后释放锁以便客户端重传最后的分片
+                if (status != STATUS_COMMITTED) {
+                    redisComponent.unlockUploadFinish(userId, fileId);
+                }
+            }
+        });
+        return resultDto;
+    }
+
+    /**
+     * @param fileMd5
+     * @return FileInfo
+     * @description 根据MD5查找可用于秒传的文件。索引建立完成后只查Redis，索引中没有即表示不存在；索引中的文件已被回收时再查一次数据库
+     */
+    private FileInfo findFileByMd5(String fileMd5) {
+        if (StringTools.isEmpty(fileMd5)) {
+            return null;
+        }
+        if (redisComponent.isMd5IndexReady()) {
+            FileInfo indexFile = redisComponent.getMd5IndexFile(fileMd5);
+            if (indexFile == null) {
+                return null;
+            }
+            if (new File(appConfig.getProjectFolder() + Constants.FILE_FOLDER_FILE + indexFile.getFilePath()).exists()) {
+                return indexFile;
+            }
+            redisComponent.removeMd5IndexFile(fileMd5, indexFile.getFilePath());
+        }
+        FileInfoQuery infoQuery = new FileInfoQuery();
+        infoQuery.setFileMd5(fileMd5);
+        infoQuery.setSimplePage(new SimplePage(0, 1));
+        infoQuery.setStatus(FileStatusEnums.USING.getStatus());
+        List<FileInfo> dbFileList = this.fileInfoMapper.selectList(infoQuery);
+        if (dbFileList.isEmpty()) {
+            return null;
+        }
+        redisComponent.saveMd5IndexFile(dbFileList.get(0));
+        return dbFileList.get(0);
+    }
+
+    /**
+     * @param userId
+     * @param fileId
+     * @param fileName
+     * @param curDate
+     * @param fileSize
+     * @param chunkSize
+     * @param chunks
+     * @return UploadSessionDto
+     * @description 获取上传会话，第一次上传分片时确定目标文件路径，抢占到会话后再按文件大小预分配目标文件
+     */
+    private UploadSessionDto getOrCreateUploadSession(String userId, String fileId, String fileName, Date curDate, Long fileSize, Long chunkSize, Integer chunks) throws IOException {
+        UploadSessionDto uploadSession = redisComponent.getUploadSession(userId, fileId);
+        if (uploadSession == null) {
+            if (fileSize <= 0 || chunkSize <= 0 || (fileSize + chunkSize - 1) / chunkSize != chunks) {
+                throw new BusinessException(ResponseCodeEnum.CODE_600);
+            }
+            String month = DateUtil.format(curDate, DateTimePatternEnum.YYYYMM.getPattern());
+            UploadSessionDto newSession = new UploadSessionDto();
+            newSession.setFileId(fileId);
+            newSession.setFilePath(month + "/" + userId + fileId + StringTools.getFileSuffix(fileName));
+            newSession.setFileSize(fileSize);
+            newSession.setChunkSize(chunkSize);
+            newSession.setChunks(chunks);
+            //并发到达的第一批分片只有一个能创建会话，其余的使用已创建的会话和目标文件，不会在其他路径预分配文件
+            if (redisComponent.createUploadSession(userId, newSession)) {
+                redisComponent.saveUploadTarget(newSession.getFilePath());
+                preallocateTarget(newSession);
+                return newSession;
+            }
+            uploadSession = redisComponent.getUploadSession(userId, fileId);
+            if (uploadSession == null) {
+                throw new BusinessException(ResponseCodeEnum.CODE_600);
+            }
+        }
+        if (!uploadSession.getFileSize().equals(fileSize) || !uploadSession.getChunkSize().equals(chunkSize) || !uploadSession.getChunks().equals(chunks)) {
+            throw new BusinessException(ResponseCodeEnum.CODE_600);
+        }
+        //创建会话的请求可能还没有完成预分配
+        preallocateTarget(uploadSession);
+        //每个分片刷新一次会话的过期时间
+        redisComponent.saveUploadSession(userId, uploadSession);
+        return uploadSession;
+    }
+
+    /**
+     * @param uploadSession
+     * @return void
+     * @description 按文件大小预分配目标文件，已经预分配过时只读取文件属性。只会扩大文件，不会截断已写入的分片
+     */
+    private void preallocateTarget(UploadSessionDto uploadSession) throws IOException {
+        File targetFile = new File(appConfig.getProjectFolder() + Constants.FILE_FOLDER_FILE + uploadSession.getFilePath());
+        if (targetFile.length() >= uploadSession.getFileSize()) {
+            return;
+        }
+        if (!targetFile.getParentFile().exists()) {
+            targetFile.getParentFile().mkdirs();
+        }
+        try (RandomAccessFile preallocateFile = new RandomAccessFile(targetFile, "rw")) {
+            if (preallocateFile.length() < uploadSession.getFileSize()) {
+                preallocateFile.setLength(uploadSession.getFileSize());
+            }
+        }
+    }
+
+    /**
+     * @param inputStream
+     * @param length
+     * @param targetFile
+     * @param offset
+     * @return void
+     * @description 将分片内容按偏移量写入目标文件
+     */
+    private void writeChunk(InputStream inputStream, long length, File targetFile, long offset) throws IOException {
+        try (ReadableByteChannel readChannel = Channels.newChannel(inputStream);
+             FileChannel writeChannel = FileChannel.open(targetFile.toPath(), StandardOpenOption.WRITE)) {
+            long written = 0;
+            while (written < length) {
+                long count = writeChannel.transferFrom(readChannel, offset + written, length - written);
+                if (count <= 0) {
+                    break;
                 }
+                written += count;
+            }
+            //流式上传时请求体可能比声明的分片更长
+            if (written != length || inputStream.read() != -1) {
+                throw new BusinessException("分片大小不一致");
+            }
+        }
+    }
+
+    /**
+     * @param userId
+     * @param fileId
+     * @return UploadDigestComponent.ChunkChecker
+     * @description 根据分片位图判断分片是否已经收到
+     */
+    private UploadDigestComponent.ChunkChecker getChunkChecker(String userId, String fileId) {
+        return chunkIndex -> redisComponent.isChunkUploaded(userId, fileId, chunkIndex);
+    }
+
+    /**
+     * @param userId
+     * @param fileId
+     * @param uploadSession
+     * @return UploadDigestComponent.ChunkReader
+     * @description 从临时目录或预分配的目标文件中读取已写入的分片，用于补算摘要
+     */
+    private UploadDigestComponent.ChunkReader getChunkReader(String userId, String fileId, UploadSessionDto uploadSession) {
+        return chunkIndex -> {
+            if (uploadSession == null) {
+                return new FileInputStream(appConfig.getProjectFolder() + Constants.FILE_FOLDER_TEMP + userId + fileId + "/" + chunkIndex);
             }
+            FileInputStream inputStream = new FileInputStream(appConfig.getProjectFolder() + Constants.FILE_FOLDER_FILE + uploadSession.getFilePath());
+            try {
+                inputStream.getChannel().position(uploadSession.getChunkOffset(chunkIndex));
+            } catch (IOException e) {
+                inputStream.close();
+                throw e;
+            }
+            return new BoundedInputStream(inputStream, uploadSession.getChunkLength(chunkIndex));
+        };
+    }
+
+    /**
+     * @param webUserDto
+     * @param fileId
+     * @param fileSize
+     * @return UploadInitDto
+     * @description 上传前协商分片大小和并发数，根据文件大小、转码队列的积压情况和磁盘剩余空间计算
+     */
+    @Override
+    public UploadInitDto uploadInit(SessionWebUserDto webUserDto, String fileId, Long fileSize) {
+        if (fileSize <= 0) {
+            throw new BusinessException(ResponseCodeEnum.CODE_600);
+        }
+        UserSpaceDto spaceDto = redisComponent.getUserSpaceUse(webUserDto.getUserId());
+        if (fileSize + spaceDto.getUseSpace() > spaceDto.getTotalSpace()) {
+            throw new BusinessException(ResponseCodeEnum.CODE_904);
+        }
+        File projectFolder = new File(appConfig.getProjectFolder());
+        long usableSpace = projectFolder.getUsableSpace();
+        if (usableSpace < fileSize) {
+            throw new BusinessException("服务器磁盘空间不足，请稍后再试");
         }
+        //转码队列积压越多负载越高，磁盘可用空间低于阈值时按满负载处理
+        double load = Math.min(1.0, (double) redisComponent.getPendingTransferJobCount() / appConfig.getTransferQueueCapacity());
+        long totalSpace = projectFolder.getTotalSpace();
+        if (totalSpace > 0 && (double) usableSpace / totalSpace < appConfig.getUploadDiskLowRatio()) {
+            load = 1.0;
+        }
+        long minChunkSize = appConfig.getUploadChunkMinSize();
+        long maxChunkSize = appConfig.getUploadChunkMaxSize();
+        //负载越低分片越大、并发越高，让客户端用更少、更大的分片上传；负载高时减小分片和并发
+        int parallelism = Math.max(1, (int) Math.round(appConfig.getUploadMaxParallelism() * (1 - load)));
+        long chunkSize = minChunkSize + (long) ((maxChunkSize - minChunkSize) * (1 - load));
+        //文件较小时按并发数切分，并按最小分片大小的整数倍对齐
+        chunkSize = Math.min(chunkSize, (fileSize + parallelism - 1) / parallelism);
+        chunkSize = Math.max(minChunkSize, chunkSize / minChunkSize * minChunkSize);
+        if (chunkSize >= fileSize) {
+            chunkSize = fileSize;
+        }
+        int chunks = (int) ((fileSize + chunkSize - 1) / chunkSize);
+
+        UploadInitDto initDto = new UploadInitDto();
+        initDto.setFileId(StringTools.isEmpty(fileId) ? StringTools.getRandomString(Constants.LENGTH_10) : fileId);
+        initDto.setChunkSize(chunkSize);
+        initDto.setChunks(chunks);
+        initDto.setParallelism(Math.min(parallelism, chunks));
+        initDto.setMinChunkSize(minChunkSize);
+        initDto.setMaxChunkSize(maxChunkSize);
+        return initDto;
+    }
+
+    /**
+     * @param userId
+     * @param fileId
+     * @param chunks
+     * @return List<Integer>
+     * @description 获取已上传的分片序号，用于断点续传
+     */
+    @Override
+    public List<Integer> getUploadedChunks(String userId, String fileId, Integer chunks) {
+        return redisComponent.getUploadedChunks(userId, fileId, chunks);
     }
 
     /**
@@ -384,78 +1064,121 @@ public class FileInfoServiceImpl implements FileInfoService {
     }
 
     /**
-     * @param fileId
-     * @param webUserDto
-     * @return void
-     * @description 异步执行文件转码操作
+     * @param transferJob
+     * @param lastAttempt 是否是最后一次执行，最后一次执行失败时标记为转码失败，否则保持转码中等待重试
+     * @return Boolean
+     * @description 执行文件转码操作，由转码任务调用，返回任务是否已经结束：转码成功，或者失败且不需要再重试
      */
-    @Async  // 异步执行，不会阻塞当前线程
-    public void transferFile(String fileId, SessionWebUserDto webUserDto) {
+    @Override
+    public Boolean transferFile(TransferJobDto transferJob, Boolean lastAttempt) {
+        String fileId = transferJob.getFileId();
+        String userId = transferJob.getUserId();
+        String serverMd5 = transferJob.getServerMd5();
         Boolean transferSuccess = true;
+        //重试也不会成功的失败，例如文件内容与MD5不一致，直接标记为转码失败
+        boolean noRetry = lastAttempt;
         String targetFilePath = null;
         String cover = null;
         FileTypeEnums fileTypeEnum = null;
-        FileInfo fileInfo = fileInfoMapper.selectByFileIdAndUserId(fileId, webUserDto.getUserId());
+        FileInfo fileInfo = fileInfoMapper.selectByFileIdAndUserId(fileId, userId);
+        //临时目录
+        String tempFolderName = appConfig.getProjectFolder() + Constants.FILE_FOLDER_TEMP;
+        String currentUserFolderName = userId + fileId;
+        File fileFolder = new File(tempFolderName + currentUserFolderName);
         try {
             if (fileInfo == null || !FileStatusEnums.TRANSFER.getStatus().equals(fileInfo.getStatus())) {
-                return;
-            }
-            //临时目录
-            String tempFolderName = appConfig.getProjectFolder() + Constants.FILE_FOLDER_TEMP;
-            String currentUserFolderName = webUserDto.getUserId() + fileId;
-            File fileFolder = new File(tempFolderName + currentUserFolderName);
-            if (!fileFolder.exists()) {
-                fileFolder.mkdirs();
+                return true;
             }
             //文件后缀
             String fileSuffix = StringTools.getFileSuffix(fileInfo.getFileName());
-            String month = DateUtil.format(fileInfo.getCreateTime(), DateTimePatternEnum.YYYYMM.getPattern());
             //目标目录
             String targetFolderName = appConfig.getProjectFolder() + Constants.FILE_FOLDER_FILE;
-            File targetFolder = new File(targetFolderName + "/" + month);
-            if (!targetFolder.exists()) {
-                targetFolder.mkdirs();
-            }
-            //真实文件名
-            String realFileName = currentUserFolderName + fileSuffix;
             //真实文件路径
-            targetFilePath = targetFolder.getPath() + "/" + realFileName;
-            //合并文件
-            union(fileFolder.getPath(), targetFilePath, fileInfo.getFileName(), true);
+            File targetFile = new File(targetFolderName + fileInfo.getFilePath());
+            if (!targetFile.getParentFile().exists()) {
+                targetFile.getParentFile().mkdirs();
+            }
+            targetFilePath = targetFile.getPath();
+            Long tempSize = transferJob.getFileSize() == null ? redisComponent.getFileTempSize(userId, fileId) : transferJob.getFileSize();
+            if (fileFolder.exists()) {
+                //没有记录分片数的任务（例如服务启动时重新创建的任务）无法校验分片是否完整，重试也不会成功
+                if (transferJob.getChunks() == null) {
+                    noRetry = true;
+                }
+                //合并文件，并校验分片数和总大小与上传时记录的一致，合并成功后才删除分片，失败时保留分片用于重试
+                union(fileFolder.getPath(), targetFilePath, fileInfo.getFileName(), transferJob.getChunks(), tempSize, false);
+                FileUtils.deleteDirectory(fileFolder);
+            } else if (!targetFile.exists() || (tempSize > 0 && targetFile.length() != tempSize)) {
+                //分片已直接写入预分配的目标文件，只需校验大小
+                throw new BusinessException("文件" + fileInfo.getFileName() + "不完整");
+            }
+            //校验文件内容与客户端提交的MD5一致，避免错误的MD5污染秒传
+            if (serverMd5 == null) {
+                try (InputStream inputStream = new FileInputStream(targetFile)) {
+                    serverMd5 = UploadDigestComponent.md5Hex(inputStream);
+                }
+            }
+            if (!serverMd5.equalsIgnoreCase(fileInfo.getFileMd5())) {
+                noRetry = true;
+                throw new BusinessException("文件" + fileInfo.getFileName() + "校验失败");
+            }
             //视频文件切割
             fileTypeEnum = FileTypeEnums.getFileTypeBySuffix(fileSuffix);
             if (FileTypeEnums.VIDEO == fileTypeEnum) {
                 cutFile4Video(fileId, targetFilePath);
                 //视频生成缩略图
-                cover = month + "/" + currentUserFolderName + Constants.IMAGE_PNG_SUFFIX;
-                String coverPath = targetFolderName + "/" + cover;
-                ScaleFilter.createCover4Video(new File(targetFilePath), Constants.LENGTH_150, new File(coverPath));
+                cover = StringTools.getFileNameNoSuffix(fileInfo.getFilePath()) + Constants.IMAGE_PNG_SUFFIX;
+                String coverPath = targetFolderName + cover;
+                ScaleFilter.createCover4Video(processRunner, new File(targetFilePath), Constants.LENGTH_150, new File(coverPath));
             } else if (FileTypeEnums.IMAGE == fileTypeEnum) {
                 //生成缩略图
-                cover = month + "/" + realFileName.replace(".", "_.");
-                String coverPath = targetFolderName + "/" + cover;
-                Boolean created = ScaleFilter.createThumbnailWidthFFmpeg(new File(targetFilePath), Constants.LENGTH_150, new File(coverPath), false);
+                cover = fileInfo.getFilePath().replace(".", "_.");
+                String coverPath = targetFolderName + cover;
+                Boolean created = ScaleFilter.createThumbnailWidthFFmpeg(processRunner, new File(targetFilePath), Constants.LENGTH_150, new File(coverPath), false);
                 if (!created) {
                     FileUtils.copyFile(new File(targetFilePath), new File(coverPath));
                 }
             }
         } catch (Exception e) {
-            logger.error("文件转码失败，文件Id:{},userId:{}", fileId, webUserDto.getUserId(), e);
+            logger.error("文件转码失败，文件Id:{},userId:{},第{}次", fileId, userId, transferJob.getAttempts() + 1, e);
             transferSuccess = false;
         } finally {
-            FileInfo updateInfo = new FileInfo();
-            updateInfo.setFileSize(new File(targetFilePath).length());
-            updateInfo.setFileCover(cover);
-            updateInfo.setStatus(transferSuccess ? FileStatusEnums.USING.getStatus() : FileStatusEnums.TRANSFER_FAIL.getStatus());
-            fileInfoMapper.updateFileStatusWithOldStatus(fileId, webUserDto.getUserId(), updateInfo, FileStatusEnums.TRANSFER.getStatus());
+            //失败且还可以重试时保持转码中状态
+            if (transferSuccess || noRetry) {
+                //最后一次也失败了，分片不再需要
+                if (!transferSuccess && fileFolder.exists()) {
+                    try {
+                        FileUtils.deleteDirectory(fileFolder);
+                    } catch (IOException e) {
+                        logger.error("删除分片目录失败，文件Id:{},userId:{}", fileId, userId, e);
+                    }
+                }
+                FileInfo updateInfo = new FileInfo();
+                updateInfo.setFileSize(targetFilePath == null ? null : new File(targetFilePath).length());
+                updateInfo.setFileCover(cover);
+                updateInfo.setStatus(transferSuccess ? FileStatusEnums.USING.getStatus() : FileStatusEnums.TRANSFER_FAIL.getStatus());
+                Integer count = fileInfoMapper.updateFileStatusWithOldStatus(fileId, userId, updateInfo, FileStatusEnums.TRANSFER.getStatus());
+                //转码成功的文件可以用于秒传
+                if (transferSuccess && count > 0) {
+                    fileInfo.setFileSize(updateInfo.getFileSize());
+                    fileInfo.setFileCover(cover);
+                    redisComponent.saveMd5IndexFile(fileInfo);
+                    //原画切片已经可以播放，再在后台生成其他清晰度
+                    if (FileTypeEnums.VIDEO == fileTypeEnum) {
+                        hlsRenditionGenerator.schedule(fileId, targetFilePath);
+                    }
+                }
+            }
         }
+        return transferSuccess || noRetry;
     }
 
     /**
      * @param fileId
      * @param videoFilePath
      * @return void
-     * @description 对视频文件进行切割操作，生成切片文件和索引文件
+     * @description 对视频文件进行切割操作，直接从原视频生成切片文件和索引文件，不再先转成完整的index.ts，
+     * 并按每GB耗时记录切割速度
      */
     private void cutFile4Video(String fileId, String videoFilePath) {
         //创建同名切片目录
@@ -463,18 +1186,19 @@ public class FileInfoServiceImpl implements FileInfoService {
         if (!tsFolder.exists()) {
             tsFolder.mkdirs();
         }
-        final String CMD_TRANSFER_2TS = "ffmpeg -y -i %s  -vcodec copy -acodec copy -vbsf h264_mp4toannexb %s";
-        final String CMD_CUT_TS = "ffmpeg -i %s -c copy -map 0 -f segment -segment_list %s -segment_time 30 %s/%s_%%4d.ts";
-
-        String tsPath = tsFolder + "/" + Constants.TS_NAME;
-        //生成.ts
-        String cmd = String.format(CMD_TRANSFER_2TS, videoFilePath, tsPath);
-        ProcessUtils.executeCommand(cmd, false);
-        //生成索引文件.m3u8 和切片.ts
-        cmd = String.format(CMD_CUT_TS, tsPath, tsFolder.getPath() + "/" + Constants.M3U8_NAME, tsFolder.getPath(), fileId);
-        ProcessUtils.executeCommand(cmd, false);
-        //删除index.ts
-        new File(tsPath).delete();
+        long startTime = System.nanoTime();
+        //复制音视频流并转成Annex B格式，按30秒切割成.ts，同时生成索引文件.m3u8
+        processRunner.execute(Arrays.asList("ffmpeg", "-y", "-i", videoFilePath, "-c:v", "copy", "-c:a", "copy", "-sn", "-dn",
+                "-bsf:v", "h264_mp4toannexb", "-f", "segment", "-segment_format", "mpegts",
+                "-segment_list", tsFolder.getPath() + "/" + Constants.M3U8_NAME, "-segment_list_type", "m3u8",
+                "-segment_time", "30", tsFolder.getPath() + "/" + fileId + "_%4d.ts"));
+        long videoSize = new File(videoFilePath).length();
+        if (videoSize > 0) {
+            DistributionSummary.builder("skybox.video.segment.seconds.per.gb")
+                    .description("视频切割每GB的耗时秒数")
+                    .register(meterRegistry)
+                    .record((System.nanoTime() - startTime) / 1e9 * (1L << 30) / videoSize);
+        }
     }
 
     /**
@@ -771,12 +1495,23 @@ public class FileInfoServiceImpl implements FileInfoService {
             }
         }
 
+        //被删除的记录引用的物理文件
+        List<FileInfo> releaseFileList = new ArrayList<>(fileInfoList);
         //删除所选文件，子目录中的文件
         if (!delFileSubFolderFileIdList.isEmpty()) {
+            FileInfoQuery subFileQuery = new FileInfoQuery();
+            subFileQuery.setUserId(userId);
+            subFileQuery.setFilePidArray(delFileSubFolderFileIdList.toArray(new String[0]));
+            subFileQuery.setFolderType(FileFolderTypeEnums.FILE.getType());
+            if (!adminOp) {
+                subFileQuery.setDelFlag(FileDelFlagEnums.DEL.getFlag());
+            }
+            releaseFileList.addAll(this.fileInfoMapper.selectList(subFileQuery));
             this.fileInfoMapper.delFileBatch(userId, delFileSubFolderFileIdList, null, adminOp ? null : FileDelFlagEnums.DEL.getFlag());
         }
         //删除所选文件
         this.fileInfoMapper.delFileBatch(userId, null, Arrays.asList(fileIdArray), adminOp ? null : FileDelFlagEnums.RECYCLE.getFlag());
+        updateBlobRef(releaseFileList, false);
 
         Long useSpace = this.fileInfoMapper.selectUseSpace(userId);
         UserInfo userInfo = new UserInfo();
@@ -836,9 +1571,10 @@ public class FileInfoServiceImpl implements FileInfoService {
      * @param shareUserId
      * @param cureentUserId
      * @return void
-     * @description 实现文件分享功能
+     * @description 实现文件分享功能，先增加物理文件的引用再插入记录，文件已被锁定回收时不插入，插入失败时由事务回滚撤销引用
      */
     @Override
+    @Transactional(rollbackFor = Exception.class)
     public void saveShare(String shareRootFilePid, String shareFileIds, String myFolderId, String shareUserId, String cureentUserId) {
         String[] shareFileIdArray = shareFileIds.split(",");
         //目标目录文件列表
@@ -862,7 +1598,7 @@ public class FileInfoServiceImpl implements FileInfoService {
             }
             findAllSubFile(copyFileList, item, shareUserId, cureentUserId, curDate, myFolderId);
         }
-        System.out.println(copyFileList.size());
+        updateBlobRef(copyFileList, true);
         this.fileInfoMapper.insertBatch(copyFileList);
     }
 
@@ -913,7 +1649,90 @@ public class FileInfoServiceImpl implements FileInfoService {
      */
     @Override
     public void deleteFileByUserId(String userId) {
+        FileInfoQuery fileInfoQuery = new FileInfoQuery();
+        fileInfoQuery.setUserId(userId);
+        fileInfoQuery.setFolderType(FileFolderTypeEnums.FILE.getType());
+        List<FileInfo> releaseFileList = this.fileInfoMapper.selectList(fileInfoQuery);
         this.fileInfoMapper.deleteFileByUserId(userId);
+        updateBlobRef(releaseFileList, false);
+    }
+
+    /**
+     * @param
+     * @return void
+     * @description 回收物理文件时按文件路径统计引用数，file_path上没有索引时创建
+     */
+    @Override
+    public void createFilePathIndex() {
+        if (this.fileInfoMapper.selectFilePathIndexCount() == 0) {
+            this.fileInfoMapper.createFilePathIndex();
+        }
+    }
+
+    /**
+     * @param fileInfoList
+     * @param retain       true为增加引用，false为减少引用
+     * @return void
+     * @description 增加引用时在事务提交前立即增加，物理文件已被锁定回收时抛出异常，事务回滚后再减少；
+     * 减少引用时在事务提交后更新，没有事务时立即更新。引用数减到0的文件由回收任务在宽限时间后删除
+     */
+    private void updateBlobRef(List<FileInfo> fileInfoList, boolean retain) {
+        if (retain) {
+            if (!retainBlobs(fileInfoList)) {
+                throw new BusinessException("文件正在被回收，请稍后重试");
+            }
+            return;
+        }
+        List<FileInfo> blobFileList = fileInfoList.stream().filter(item -> !StringTools.isEmpty(item.getFilePath())).collect(Collectors.toList());
+        if (blobFileList.isEmpty()) {
+            return;
+        }
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            releaseBlobs(blobFileList);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                releaseBlobs(blobFileList);
+            }
+        });
     }
-}
 
+    /**
+     * @param fileInfoList
+     * @return boolean
+     * @description 增加物理文件的引用计数，有文件已被锁定回收时撤销已增加的引用并返回false。
+     * 引用在事务提交前就已计入，回收任务锁定文件后再统计数据库中的引用数，不会删除即将提交的记录引用的文件
+     */
+    private boolean retainBlobs(List<FileInfo> fileInfoList) {
+        List<FileInfo> retainedList = new ArrayList<>();
+        for (FileInfo item : fileInfoList) {
+            if (StringTools.isEmpty(item.getFilePath())) {
+                continue;
+            }
+            if (!redisComponent.retainBlob(item.getFilePath())) {
+                releaseBlobs(retainedList);
+                return false;
+            }
+            retainedList.add(item);
+        }
+        if (!retainedList.isEmpty() && TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    if (status != STATUS_COMMITTED) {
+                        releaseBlobs(retainedList);
+                    }
+                }
+            });
+        }
+        return true;
+    }
+
+    private void releaseBlobs(List<FileInfo> fileInfoList) {
+        for (FileInfo item : fileInfoList) {
+            redisComponent.releaseBlob(item.getFilePath(), item.getFileMd5(), appConfig.getBlobGcGrace() * 1000L);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.skybox.task;
+
+import com.skybox.component.RedisComponent;
+import com.skybox.entity.config.AppConfig;
+import com.skybox.entity.constants.Constants;
+import com.skybox.entity.query.FileInfoQuery;
+import com.skybox.service.FileInfoService;
+import com.skybox.utils.StringTools;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.io.File;
+import java.util.Set;
+
+/**
+ * @Project: SkyBox-BE
+ * @Package: com.skybox.task
+ * @ClassName: BlobCleanTask
+ * @Datetime: 2024/01/14 16:20
+ * @Author: HuangRongQuan
+ * @Email: rongquanhuang01@gmail.com
+ * @Description: 定时任务类分批回收引用数已减到0的物理文件，包括文件本身、缩略图和视频切片目录。
+ * 回收前先锁定物理文件，锁定后不能再新增引用，再以数据库中的引用数确认后删除
+ */
+
+@Component
+public class BlobCleanTask {
+
+    private static final Logger logger = LoggerFactory.getLogger(BlobCleanTask.class);
+
+    @Resource
+    private FileInfoService fileInfoService;
+
+    @Resource
+    private RedisComponent redisComponent;
+
+    @Resource
+    private AppConfig appConfig;
+
+    /**
+     * @param
+     * @return void
+     * @description 服务启动后确认按文件路径统计引用数的索引已经存在
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void init() {
+        try {
+            fileInfoService.createFilePathIndex();
+        } catch (Exception e) {
+            logger.warn("创建文件路径索引失败，回收物理文件时按文件路径统计引用数会扫描全表", e);
+        }
+    }
+
+    /**
+     * @param
+     * @return void
+     * @description 每分钟执行一次，删除前以数据库中引用该文件的记录数为准再确认一次，Redis中的引用计数只用于触发回收。
+     * 已重新被引用或其他节点正在回收的文件跳过，一批都被跳过时结束本次回收
+     */
+    @Scheduled(fixedDelay = 1000 * 60)
+    public void execute() {
+        Set<String> filePathSet;
+        while (!(filePathSet = redisComponent.getGcBlobs(appConfig.getBlobGcBatch())).isEmpty()) {
+            int deleteCount = 0;
+            int skipCount = 0;
+            for (String filePath : filePathSet) {
+                if (!redisComponent.lockBlob(filePath)) {
+                    skipCount++;
+                    continue;
+                }
+                try {
+                    FileInfoQuery fileInfoQuery = new FileInfoQuery();
+                    fileInfoQuery.setFilePath(filePath);
+                    Integer count = fileInfoService.findCountByParam(fileInfoQuery);
+                    if (count > 0) {
+                        redisComponent.resetBlobRef(filePath, count);
+                        continue;
+                    }
+                    deleteBlob(filePath);
+                    redisComponent.removeBlob(filePath);
+                    deleteCount++;
+                } finally {
+                    redisComponent.unlockBlob(filePath);
+                }
+            }
+            logger.info("回收物理文件:{}个，仍被引用或正在回收:{}个", deleteCount, filePathSet.size() - deleteCount);
+            if (skipCount == filePathSet.size()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param filePath
+     * @return void
+     * @description 删除物理文件及其衍生文件，衍生文件的路径与转码时生成的路径一致
+     */
+    private void deleteBlob(String filePath) {
+        String targetFolderName = appConfig.getProjectFolder() + Constants.FILE_FOLDER_FILE;
+        String filePathNoSuffix = StringTools.getFileNameNoSuffix(filePath);
+        FileUtils.deleteQuietly(new File(targetFolderName + filePath));
+        //视频缩略图
+        FileUtils.deleteQuietly(new File(targetFolderName + filePathNoSuffix + Constants.IMAGE_PNG_SUFFIX));
+        //图片缩略图
+        FileUtils.deleteQuietly(new File(targetFolderName + filePath.replace(".", "_.")));
+        //视频切片目录
+        if (!filePathNoSuffix.equals(filePath)) {
+            FileUtils.deleteQuietly(new File(targetFolderName + filePathNoSuffix));
+        }
+    }
+}
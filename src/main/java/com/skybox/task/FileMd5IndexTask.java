@@ -0,0 +1,78 @@
+package com.skybox.task;
+
+import com.skybox.component.RedisComponent;
+import com.skybox.entity.enums.FileFolderTypeEnums;
+import com.skybox.entity.enums.FileStatusEnums;
+import com.skybox.entity.po.FileInfo;
+import com.skybox.entity.query.FileInfoQuery;
+import com.skybox.entity.query.SimplePage;
+import com.skybox.service.FileInfoService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.List;
+
+/**
+ * @Project: SkyBox-BE
+ * @Package: com.skybox.task
+ * @ClassName: FileMd5IndexTask
+ * @Datetime: 2024/01/15 20:40
+ * @Author: HuangRongQuan
+ * @Email: rongquanhuang01@gmail.com
+ * @Description: 服务启动后从数据库建立秒传索引，建立完成前秒传仍查询数据库
+ */
+
+@Component
+public class FileMd5IndexTask {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileMd5IndexTask.class);
+
+    private static final int PAGE_SIZE = 1000;
+
+    @Resource
+    private FileInfoService fileInfoService;
+
+    @Resource
+    private RedisComponent redisComponent;
+
+    /**
+     * @param
+     * @return void
+     * @description 索引未建立时按主键分页读取所有可用的文件加入秒传索引，之后由转码成功和物理文件回收维护。
+     * 每页从上一页最后一条记录的主键之后开始读取，不使用偏移量，读取靠后的页不需要跳过前面的记录
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void buildMd5Index() {
+        if (redisComponent.isMd5IndexReady()) {
+            return;
+        }
+        int total = 0;
+        FileInfo lastFile = null;
+        while (true) {
+            FileInfoQuery fileInfoQuery = new FileInfoQuery();
+            fileInfoQuery.setStatus(FileStatusEnums.USING.getStatus());
+            fileInfoQuery.setFolderType(FileFolderTypeEnums.FILE.getType());
+            fileInfoQuery.setOrderBy("file_id asc, user_id asc");
+            fileInfoQuery.setSimplePage(new SimplePage(0, PAGE_SIZE));
+            if (lastFile != null) {
+                fileInfoQuery.setAfterFileId(lastFile.getFileId());
+                fileInfoQuery.setAfterUserId(lastFile.getUserId());
+            }
+            List<FileInfo> fileInfoList = fileInfoService.findListByParam(fileInfoQuery);
+            for (FileInfo fileInfo : fileInfoList) {
+                redisComponent.saveMd5IndexFile(fileInfo);
+            }
+            total += fileInfoList.size();
+            if (fileInfoList.size() < PAGE_SIZE) {
+                break;
+            }
+            lastFile = fileInfoList.get(fileInfoList.size() - 1);
+        }
+        redisComponent.setMd5IndexReady();
+        logger.info("秒传索引建立完成，共读取文件:{}个", total);
+    }
+}
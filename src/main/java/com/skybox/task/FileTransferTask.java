@@ -0,0 +1,160 @@
+package com.skybox.task;
+
+import com.skybox.component.FileTransferExecutor;
+import com.skybox.component.RedisComponent;
+import com.skybox.entity.config.AppConfig;
+import com.skybox.entity.dto.TransferJobDto;
+import com.skybox.entity.enums.FileStatusEnums;
+import com.skybox.entity.enums.FileTypeEnums;
+import com.skybox.entity.po.FileInfo;
+import com.skybox.entity.query.FileInfoQuery;
+import com.skybox.service.FileInfoService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Project: SkyBox-BE
+ * @Package: com.skybox.task
+ * @ClassName: FileTransferTask
+ * @Datetime: 2024/01/13 20:15
+ * @Author: HuangRongQuan
+ * @Email: rongquanhuang01@gmail.com
+ * @Description: 从Redis中取出转码任务交给转码线程池执行，执行中的任务由单独的线程定时续约，失败的任务按间隔翻倍重试，启动时恢复停留在转码中的文件
+ */
+
+@Component
+public class FileTransferTask {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileTransferTask.class);
+
+    @Resource
+    private FileInfoService fileInfoService;
+
+    @Resource
+    private RedisComponent redisComponent;
+
+    @Resource
+    private FileTransferExecutor fileTransferExecutor;
+
+    @Resource
+    private AppConfig appConfig;
+
+    // 本节点已取出、还没有结束的任务，用于续约
+    private final Map<String, TransferJobDto> runningJobMap = new ConcurrentHashMap<>();
+
+    // 续约线程，不使用Spring默认只有一个线程的定时任务调度器，避免其他耗时的定时任务推迟续约导致租约过期、任务被其他节点重复执行
+    private ScheduledExecutorService renewExecutor;
+
+    @PostConstruct
+    public void init() {
+        renewExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "transfer-job-renew");
+            thread.setDaemon(true);
+            return thread;
+        });
+        renewExecutor.scheduleWithFixedDelay(this::renewJobs, 1, 1, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        renewExecutor.shutdownNow();
+    }
+
+    /**
+     * @param
+     * @return void
+     * @description 服务启动后，为停留在转码中但没有转码任务的文件重新创建任务，例如事务提交后、任务保存前服务宕机的文件
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void recoverTransferJobs() {
+        FileInfoQuery fileInfoQuery = new FileInfoQuery();
+        fileInfoQuery.setStatus(FileStatusEnums.TRANSFER.getStatus());
+        List<FileInfo> fileInfoList = fileInfoService.findListByParam(fileInfoQuery);
+        int recoverCount = 0;
+        for (FileInfo fileInfo : fileInfoList) {
+            TransferJobDto transferJob = new TransferJobDto();
+            transferJob.setUserId(fileInfo.getUserId());
+            transferJob.setFileId(fileInfo.getFileId());
+            transferJob.setFileType(fileInfo.getFileType());
+            if (redisComponent.enqueueTransferJobIfAbsent(transferJob)) {
+                recoverCount++;
+            }
+        }
+        logger.info("转码中的文件:{}个，重新创建转码任务:{}个", fileInfoList.size(), recoverCount);
+    }
+
+    /**
+     * @param
+     * @return void
+     * @description 每秒为执行中的任务续约，单个任务续约失败不影响其他任务
+     */
+    private void renewJobs() {
+        long leaseMillis = appConfig.getTransferJobLease() * 1000L;
+        for (String jobId : runningJobMap.keySet()) {
+            try {
+                redisComponent.renewTransferJob(jobId, leaseMillis);
+            } catch (Exception e) {
+                logger.error("转码任务续约失败，任务Id:{}", jobId, e);
+            }
+        }
+    }
+
+    /**
+     * @param
+     * @return void
+     * @description 转码线程池有空闲时取出新的任务
+     */
+    @Scheduled(fixedDelay = 1000)
+    public void execute() {
+        long leaseMillis = appConfig.getTransferJobLease() * 1000L;
+        while (fileTransferExecutor.getAvailableSlots() > 0) {
+            TransferJobDto transferJob = redisComponent.claimTransferJob(leaseMillis);
+            if (transferJob == null) {
+                return;
+            }
+            //租约过期后被本节点重新取出，任务仍在执行
+            if (runningJobMap.putIfAbsent(transferJob.getJobId(), transferJob) != null) {
+                continue;
+            }
+            fileTransferExecutor.execute(FileTypeEnums.getByType(transferJob.getFileType()), transferJob.getFileSize(), () -> runJob(transferJob));
+        }
+    }
+
+    /**
+     * @param transferJob
+     * @return void
+     * @description 执行转码任务，任务结束（成功或不需要重试的失败）或达到最大次数后删除任务，否则延迟后重试
+     */
+    private void runJob(TransferJobDto transferJob) {
+        boolean lastAttempt = transferJob.getAttempts() + 1 >= appConfig.getTransferMaxAttempts();
+        Boolean finished = false;
+        try {
+            finished = fileInfoService.transferFile(transferJob, lastAttempt);
+        } catch (Exception e) {
+            logger.error("转码任务执行失败，文件Id:{},userId:{}", transferJob.getFileId(), transferJob.getUserId(), e);
+        } finally {
+            runningJobMap.remove(transferJob.getJobId());
+            if (Boolean.TRUE.equals(finished) || lastAttempt) {
+                redisComponent.removeTransferJob(transferJob.getJobId());
+            } else {
+                long delayMillis = appConfig.getTransferRetryBackoff() * 1000L << transferJob.getAttempts();
+                transferJob.setAttempts(transferJob.getAttempts() + 1);
+                redisComponent.enqueueTransferJob(transferJob, delayMillis);
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.skybox.task;
+
+import com.skybox.component.RedisComponent;
+import com.skybox.entity.config.AppConfig;
+import com.skybox.entity.constants.Constants;
+import com.skybox.entity.query.FileInfoQuery;
+import com.skybox.service.FileInfoService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+
+/**
+ * @Project: SkyBox-BE
+ * @Package: com.skybox.task
+ * @ClassName: TempFileCleanTask
+ * @Datetime: 2024/01/16 21:10
+ * @Author: HuangRongQuan
+ * @Email: rongquanhuang01@gmail.com
+ * @Description: 定时任务类清理放弃上传后遗留的分片目录和预分配的目标文件，每次最多清理一批，并统计回收的字节数
+ */
+
+@Component
+public class TempFileCleanTask {
+
+    private static final Logger logger = LoggerFactory.getLogger(TempFileCleanTask.class);
+
+    @Resource
+    private FileInfoService fileInfoService;
+
+    @Resource
+    private RedisComponent redisComponent;
+
+    @Resource
+    private AppConfig appConfig;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    private Counter reclaimedBytesCounter;
+
+    @PostConstruct
+    public void init() {
+        reclaimedBytesCounter = Counter.builder("skybox.temp.reclaimed.bytes")
+                .description("清理放弃上传的文件回收的字节数")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    /**
+     * @param
+     * @return void
+     * @description 每10分钟执行一次，依次清理分片目录和预分配的目标文件
+     */
+    @Scheduled(fixedDelay = 1000 * 60 * 10)
+    public void execute() {
+        long expireTime = System.currentTimeMillis() - appConfig.getTempCleanExpire() * 1000L;
+        int batchSize = appConfig.getTempCleanBatch();
+        int cleanCount = cleanTempFolders(expireTime, batchSize);
+        cleanCount += cleanUploadTargets(expireTime, batchSize);
+        if (cleanCount > 0) {
+            logger.info("清理放弃上传的分片目录和目标文件:{}个", cleanCount);
+        }
+    }
+
+    /**
+     * @param expireTime
+     * @param batchSize
+     * @return int
+     * @description 逐个遍历临时目录，不一次性列出所有目录；目录名为用户ID + 文件ID，目录长时间未更新且上传已不在进行时删除
+     */
+    private int cleanTempFolders(long expireTime, int batchSize) {
+        File tempFolder = new File(appConfig.getProjectFolder() + Constants.FILE_FOLDER_TEMP);
+        if (!tempFolder.exists()) {
+            return 0;
+        }
+        int cleanCount = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(tempFolder.toPath(), Files::isDirectory)) {
+            for (Path path : stream) {
+                if (cleanCount >= batchSize) {
+                    break;
+                }
+                File chunkFolder = path.toFile();
+                if (chunkFolder.lastModified() > expireTime || redisComponent.isUploadActive(chunkFolder.getName())) {
+                    continue;
+                }
+                long size = FileUtils.sizeOfDirectory(chunkFolder);
+                FileUtils.deleteDirectory(chunkFolder);
+                reclaimedBytesCounter.increment(size);
+                cleanCount++;
+            }
+        } catch (IOException e) {
+            logger.error("清理分片目录失败", e);
+        }
+        return cleanCount;
+    }
+
+    /**
+     * @param expireTime
+     * @param batchSize
+     * @return int
+     * @description 清理分片直接写入的预分配目标文件：已入库的只取消记录，长时间未写入且未入库的删除
+     */
+    private int cleanUploadTargets(long expireTime, int batchSize) {
+        Set<String> filePathSet = redisComponent.getUploadTargets(expireTime, batchSize);
+        int cleanCount = 0;
+        for (String filePath : filePathSet) {
+            File targetFile = new File(appConfig.getProjectFolder() + Constants.FILE_FOLDER_FILE + filePath);
+            //最近仍有分片写入，推迟到下一个周期再检查
+            if (targetFile.exists() && targetFile.lastModified() > expireTime) {
+                redisComponent.saveUploadTarget(filePath);
+                continue;
+            }
+            FileInfoQuery fileInfoQuery = new FileInfoQuery();
+            fileInfoQuery.setFilePath(filePath);
+            if (fileInfoService.findCountByParam(fileInfoQuery) == 0 && targetFile.exists()) {
+                long size = targetFile.length();
+                if (targetFile.delete()) {
+                    reclaimedBytesCounter.increment(size);
+                    cleanCount++;
+                }
+            }
+            redisComponent.removeUploadTarget(filePath);
+        }
+        return cleanCount;
+    }
+}
@@ -0,0 +1,66 @@
+package com.skybox.utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * @Project: SkyBox-BE
+ * @Package: com.skybox.utils
+ * @ClassName: ByteBufferPool
+ * @Datetime: 2024/01/20 21:10
+ * @Author: HuangRongQuan
+ * @Email: rongquanhuang01@gmail.com
+ * @Description: 复用输出文件时使用的缓冲区，避免每次下载都分配缓冲区。在通道之间读写时使用直接缓冲区；
+ * 写入Servlet输出流时使用堆缓冲区，输出流只接受字节数组，直接缓冲区还需要再复制一次到堆中
+ */
+
+public class ByteBufferPool {
+
+    // 缓冲区大小
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    // 最多保留的空闲缓冲区数，超出的缓冲区用完后直接丢弃
+    private static final int MAX_POOLED = 64;
+
+    private static final BlockingQueue<ByteBuffer> POOL = new ArrayBlockingQueue<>(MAX_POOLED);
+
+    private static final BlockingQueue<ByteBuffer> HEAP_POOL = new ArrayBlockingQueue<>(MAX_POOLED);
+
+    /**
+     * @param
+     * @return ByteBuffer
+     * @description 取出一个已清空的直接缓冲区，没有空闲的缓冲区时新分配一个
+     */
+    public static ByteBuffer acquire() {
+        ByteBuffer buffer = POOL.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * @param
+     * @return ByteBuffer
+     * @description 取出一个已清空的堆缓冲区，可以通过array()直接写入输出流，没有空闲的缓冲区时新分配一个
+     */
+    public static ByteBuffer acquireHeap() {
+        ByteBuffer buffer = HEAP_POOL.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocate(BUFFER_SIZE);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * @param buffer
+     * @return void
+     * @description 归还缓冲区，按类型放回对应的池中
+     */
+    public static void release(ByteBuffer buffer) {
+        (buffer.isDirect() ? POOL : HEAP_POOL).offer(buffer);
+    }
+}
@@ -0,0 +1,109 @@
+package com.skybox.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @Project: SkyBox-BE
+ * @Package: com.skybox.utils
+ * @ClassName: RangeUtils
+ * @Datetime: 2024/01/20 15:30
+ * @Author: HuangRongQuan
+ * @Email: rongquanhuang01@gmail.com
+ * @Description: 解析HTTP请求头Range并输出文件的指定范围，用于断点续传、多线程下载和播放器拖动
+ */
+
+public class RangeUtils {
+
+    private static final String BYTES_UNIT = "bytes=";
+
+    // 一次请求最多允许的范围数，超过时忽略Range返回整个文件
+    private static final int MAX_RANGES = 16;
+
+    /**
+     * @param rangeHeader
+     * @param length      文件大小
+     * @return List<long[]>
+     * @description 解析Range请求头，返回每个范围的起止位置（包含结束位置）。格式错误或范围过多时返回null，表示忽略Range；
+     * 所有范围都超出文件大小时返回空集合，表示应返回416
+     */
+    public static List<long[]> parseRanges(String rangeHeader, long length) {
+        if (StringTools.isEmpty(rangeHeader) || !rangeHeader.startsWith(BYTES_UNIT)) {
+            return null;
+        }
+        String[] specs = rangeHeader.substring(BYTES_UNIT.length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<long[]> rangeList = new ArrayList<>();
+        for (String spec : specs) {
+            spec = spec.trim();
+            int index = spec.indexOf('-');
+            if (index < 0) {
+                return null;
+            }
+            long start;
+            long end;
+            try {
+                if (index == 0) {
+                    //bytes=-500 表示最后500个字节
+                    long suffixLength = Long.parseLong(spec.substring(1));
+                    if (suffixLength <= 0) {
+                        continue;
+                    }
+                    start = Math.max(0, length - suffixLength);
+                    end = length - 1;
+                } else {
+                    start = Long.parseLong(spec.substring(0, index));
+                    end = index == spec.length() - 1 ? length - 1 : Long.parseLong(spec.substring(index + 1));
+                    if (end < start) {
+                        return null;
+                    }
+                    end = Math.min(end, length - 1);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            //超出文件大小的范围无法满足
+            if (start >= length) {
+                continue;
+            }
+            rangeList.add(new long[]{start, end});
+        }
+        return rangeList;
+    }
+
+    /**
+     * @param in
+     * @param out
+     * @param start
+     * @param length
+     * @return void
+     * @description 从指定位置开始输出指定长度的文件内容，使用缓冲区池中的堆缓冲区，读入后直接写出字节数组
+     */
+    public static void copyRange(FileChannel in, OutputStream out, long start, long length) throws IOException {
+        ByteBuffer buffer = ByteBufferPool.acquireHeap();
+        try {
+            long position = start;
+            long end = start + length;
+            while (position < end) {
+                buffer.clear();
+                if (end - position < buffer.capacity()) {
+                    buffer.limit((int) (end - position));
+                }
+                int len = in.read(buffer, position);
+                if (len == -1) {
+                    break;
+                }
+                out.write(buffer.array(), buffer.arrayOffset(), len);
+                position += len;
+            }
+        } finally {
+            ByteBufferPool.release(buffer);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.skybox.utils;
 
+import com.skybox.component.ProcessRunner;
 import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -8,6 +9,7 @@ import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.math.BigDecimal;
+import java.util.Arrays;
 
 /**
  * @Project: SkyBox-BE
@@ -23,7 +25,7 @@ public class ScaleFilter {
     private static final Logger logger = LoggerFactory.getLogger(ScaleFilter.class);
 
 
-    public static Boolean createThumbnailWidthFFmpeg(File file, int thumbnailWidth, File targetFile, Boolean delSource) {
+    public static Boolean createThumbnailWidthFFmpeg(ProcessRunner processRunner, File file, int thumbnailWidth, File targetFile, Boolean delSource) {
         try {
             BufferedImage src = ImageIO.read(file);
             //thumbnailWidth 缩略图的宽度   thumbnailHeight 缩略图的高度
@@ -33,7 +35,7 @@ public class ScaleFilter {
             if (sorceW <= thumbnailWidth) {
                 return false;
             }
-            compressImage(file, thumbnailWidth, targetFile, delSource);
+            compressImage(processRunner, file, thumbnailWidth, targetFile, delSource);
             return true;
         } catch (Exception e) {
             e.printStackTrace();
@@ -41,28 +43,28 @@ public class ScaleFilter {
         return false;
     }
 
-    public static void compressImageWidthPercentage(File sourceFile, BigDecimal widthPercentage, File targetFile) {
+    public static void compressImageWidthPercentage(ProcessRunner processRunner, File sourceFile, BigDecimal widthPercentage, File targetFile) {
         try {
             BigDecimal widthResult = widthPercentage.multiply(new BigDecimal(ImageIO.read(sourceFile).getWidth()));
-            compressImage(sourceFile, widthResult.intValue(), targetFile, true);
+            compressImage(processRunner, sourceFile, widthResult.intValue(), targetFile, true);
         } catch (Exception e) {
             logger.error("压缩图片失败");
         }
     }
 
-    public static void createCover4Video(File sourceFile, Integer width, File targetFile) {
+    public static void createCover4Video(ProcessRunner processRunner, File sourceFile, Integer width, File targetFile) {
         try {
-            String cmd = "ffmpeg -i %s -y -vframes 1 -vf scale=%d:%d/a %s";
-            ProcessUtils.executeCommand(String.format(cmd, sourceFile.getAbsoluteFile(), width, width, targetFile.getAbsoluteFile()), false);
+            processRunner.execute(Arrays.asList("ffmpeg", "-i", sourceFile.getAbsolutePath(), "-y", "-vframes", "1",
+                    "-vf", String.format("scale=%d:%d/a", width, width), targetFile.getAbsolutePath()));
         } catch (Exception e) {
             logger.error("生成视频封面失败", e);
         }
     }
 
-    public static void compressImage(File sourceFile, Integer width, File targetFile, Boolean delSource) {
+    public static void compressImage(ProcessRunner processRunner, File sourceFile, Integer width, File targetFile, Boolean delSource) {
         try {
-            String cmd = "ffmpeg -i %s -vf scale=%d:-1 %s -y";
-            ProcessUtils.executeCommand(String.format(cmd, sourceFile.getAbsoluteFile(), width, targetFile.getAbsoluteFile()), false);
+            processRunner.execute(Arrays.asList("ffmpeg", "-i", sourceFile.getAbsolutePath(), "-vf", String.format("scale=%d:-1", width),
+                    targetFile.getAbsolutePath(), "-y"));
             if (delSource) {
                 FileUtils.forceDelete(sourceFile);
             }
@@ -0,0 +1,204 @@
+package com.skybox.benchmark;
+
+import com.skybox.utils.RangeUtils;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * @Project: SkyBox-BE
+ * @Package: com.skybox.benchmark
+ * @ClassName: RangeDownloadBenchmark
+ * @Datetime: 2024/01/25 10:40
+ * @Author: HuangRongQuan
+ * @Email: rongquanhuang01@gmail.com
+ * @Description: 对比下载输出的吞吐量和CPU：原来FileInputStream加1KB字节数组的循环、readFile不使用sendfile时调用的RangeUtils.copyRange，
+ * 以及FileChannel.transferTo。通过本机回环连接发送给只读取并丢弃数据的接收端，分别测试整个文件和文件中间一半的范围。
+ * transferTo一行只测量内核发送文件本身，不经过readFile和Tomcat，代表的是readFile交给容器sendfile后的上限：
+ * 只有容器支持sendfile、文件不小于48KB且下载不需要限速时readFile才会交给容器，需要限速的下载走copyRange或异步输出。
+ * 参数依次为：文件大小（MB，默认1024）、轮数（默认3）、工作目录（默认系统临时目录）。结果取各轮的中位数，CPU为发送线程的CPU时间
+ */
+
+public class RangeDownloadBenchmark {
+
+    private static final long MB = 1024 * 1024L;
+
+    // 接收端的缓冲区大小
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        long size = (args.length > 0 ? Long.parseLong(args[0]) : 1024) * MB;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        File workDir = new File(args.length > 2 ? args[2] : System.getProperty("java.io.tmpdir"), "skybox-download-benchmark");
+        File file = new File(workDir, "download.bin");
+        ExecutorService receiverExecutor = Executors.newCachedThreadPool();
+        try (ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            createFile(file, size);
+            System.out.printf("文件大小:%dMB，轮数:%d%n", size / MB, rounds);
+            System.out.printf("%-10s %-18s %12s %12s %12s%n", "范围", "实现", "耗时(s)", "吞吐(MB/s)", "CPU(s)");
+            long[][] rangeList = {{0, size}, {size / 4, size / 2}};
+            String[] rangeNames = {"整个文件", "中间一半"};
+            for (int r = 0; r < rangeList.length; r++) {
+                long start = rangeList[r][0];
+                long count = rangeList[r][1];
+                double[][] legacy = new double[rounds][];
+                double[][] copyRange = new double[rounds][];
+                double[][] sendfile = new double[rounds][];
+                for (int i = 0; i < rounds; i++) {
+                    legacy[i] = measure(serverSocket, receiverExecutor, count, socket -> legacyCopy(file, socket.getOutputStream(), start, count));
+                    copyRange[i] = measure(serverSocket, receiverExecutor, count, socket -> copyRange(file, socket.getOutputStream(), start, count));
+                    sendfile[i] = measure(serverSocket, receiverExecutor, count, socket -> transferTo(file, socket.getChannel(), start, count));
+                }
+                print(rangeNames[r], "byte[] 1KB", count, legacy);
+                print(rangeNames[r], "copyRange", count, copyRange);
+                print(rangeNames[r], "transferTo", count, sendfile);
+            }
+        } finally {
+            receiverExecutor.shutdownNow();
+            FileUtils.deleteQuietly(workDir);
+        }
+    }
+
+    private static void createFile(File file, long size) throws IOException {
+        file.getParentFile().mkdirs();
+        byte[] bytes = new byte[(int) (8 * MB)];
+        new Random(1).nextBytes(bytes);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long written = 0;
+            while (written < size) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, (int) Math.min(bytes.length, size - written));
+                while (buffer.hasRemaining()) {
+                    written += channel.write(buffer);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param file
+     * @param out
+     * @param start
+     * @param count
+     * @return void
+     * @description 原来的输出方式：FileInputStream加1KB字节数组，跳过范围之前的部分
+     */
+    private static void legacyCopy(File file, OutputStream out, long start, long count) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            long skipped = 0;
+            while (skipped < start) {
+                skipped += in.skip(start - skipped);
+            }
+            byte[] byteData = new byte[1024];
+            long remaining = count;
+            int len;
+            while (remaining > 0 && (len = in.read(byteData, 0, (int) Math.min(byteData.length, remaining))) != -1) {
+                out.write(byteData, 0, len);
+                remaining -= len;
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * @param file
+     * @param out
+     * @param start
+     * @param count
+     * @return void
+     * @description 与readFile在当前线程输出时相同：打开文件后调用RangeUtils.copyRange，使用缓冲区池中的64KB堆缓冲区
+     */
+    private static void copyRange(File file, OutputStream out, long start, long count) throws IOException {
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            RangeUtils.copyRange(in, out, start, count);
+            out.flush();
+        }
+    }
+
+    /**
+     * @param file
+     * @param out
+     * @param start
+     * @param count
+     * @return void
+     * @description 由内核把文件内容直接发送到连接，只代表Tomcat执行sendfile的部分，不包含readFile和容器的处理
+     */
+    private static void transferTo(File file, SocketChannel out, long start, long count) throws IOException {
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long position = start;
+            long end = start + count;
+            while (position < end) {
+                position += in.transferTo(position, end - position, out);
+            }
+        }
+    }
+
+    /**
+     * @param serverSocket
+     * @param receiverExecutor
+     * @param count
+     * @param sender
+     * @return double[] 耗时秒数和发送线程的CPU秒数
+     * @description 建立一个回环连接，发送完毕并关闭连接后等待接收端读完，校验接收的字节数
+     */
+    private static double[] measure(ServerSocket serverSocket, ExecutorService receiverExecutor, long count, Sender sender) throws Exception {
+        Future<Long> received = receiverExecutor.submit(() -> {
+            try (Socket socket = serverSocket.accept(); InputStream in = socket.getInputStream()) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                long total = 0;
+                int len;
+                while ((len = in.read(buffer)) != -1) {
+                    total += len;
+                }
+                return total;
+            }
+        });
+        long cpuStart = THREAD_MX_BEAN.getCurrentThreadCpuTime();
+        long startTime = System.nanoTime();
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(serverSocket.getInetAddress(), serverSocket.getLocalPort()))) {
+            sender.send(channel.socket());
+        }
+        double cpuSeconds = (THREAD_MX_BEAN.getCurrentThreadCpuTime() - cpuStart) / 1e9;
+        long total = received.get();
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        if (total != count) {
+            throw new IllegalStateException("接收的字节数不一致:" + total + "，期望:" + count);
+        }
+        return new double[]{seconds, cpuSeconds};
+    }
+
+    private static void print(String rangeName, String name, long count, double[][] results) {
+        double seconds = median(results, 0);
+        System.out.printf("%-10s %-18s %12.3f %12.1f %12.3f%n", rangeName, name, seconds, count / (double) MB / seconds, median(results, 1));
+    }
+
+    private static double median(double[][] results, int column) {
+        double[] values = Arrays.stream(results).mapToDouble(result -> result[column]).sorted().toArray();
+        return values[values.length / 2];
+    }
+
+    private interface Sender {
+        void send(Socket socket) throws IOException;
+    }
+}
@@ -0,0 +1,155 @@
+package com.skybox.benchmark;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Project: SkyBox-BE
+ * @Package: com.skybox.benchmark
+ * @ClassName: SegmentBenchmark
+ * @Datetime: 2024/01/25 11:20
+ * @Author: HuangRongQuan
+ * @Email: rongquanhuang01@gmail.com
+ * @Description: 对比视频切片每GB的耗时：原来先转成完整的index.ts再切割的两次FFmpeg，与现在cutFile4Video直接从原视频切割的一次FFmpeg，
+ * 命令参数与两种实现一致。参数依次为：视频文件（不传时用FFmpeg生成一段10分钟1080p的H.264/AAC测试视频）、轮数（默认3）。
+ * 找不到ffmpeg时跳过，可通过-Dffmpeg=路径指定。结果取各轮的中位数，另外输出中间文件index.ts额外写入的字节数
+ */
+
+public class SegmentBenchmark {
+
+    private static final double GB = 1024 * 1024 * 1024.0;
+
+    private static final String FFMPEG = System.getProperty("ffmpeg", "ffmpeg");
+
+    // 生成测试视频的时长秒数
+    private static final int SAMPLE_SECONDS = 600;
+
+    public static void main(String[] args) throws Exception {
+        if (!isFfmpegAvailable()) {
+            System.out.println("未找到ffmpeg，跳过视频切片基准测试，可通过-Dffmpeg=路径指定");
+            return;
+        }
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        File workDir = new File(System.getProperty("java.io.tmpdir"), "skybox-segment-benchmark");
+        FileUtils.deleteQuietly(workDir);
+        workDir.mkdirs();
+        try {
+            File video = args.length > 0 && !args[0].isEmpty() ? new File(args[0]) : createSample(workDir);
+            double sizeGb = video.length() / GB;
+            long[] legacyTs = new long[1];
+            double[] legacy = new double[rounds];
+            double[] current = new double[rounds];
+            for (int i = 0; i < rounds; i++) {
+                legacy[i] = time(() -> legacyTs[0] = legacySegment(video, new File(workDir, "legacy"), "bench"));
+                current[i] = time(() -> singlePassSegment(video, new File(workDir, "current"), "bench"));
+            }
+            System.out.printf("视频:%s，大小:%.3fGB，轮数:%d%n", video.getPath(), sizeGb, rounds);
+            System.out.printf("%-14s %12s %14s%n", "实现", "耗时(s)", "每GB耗时(s)");
+            System.out.printf("%-14s %12.2f %14.2f%n", "两次FFmpeg", median(legacy), median(legacy) / sizeGb);
+            System.out.printf("%-14s %12.2f %14.2f%n", "一次FFmpeg", median(current), median(current) / sizeGb);
+            System.out.printf("两次FFmpeg额外写入index.ts:%.3fGB%n", legacyTs[0] / GB);
+        } finally {
+            FileUtils.deleteQuietly(workDir);
+        }
+    }
+
+    /**
+     * @param video
+     * @param folder
+     * @param fileId
+     * @return long index.ts的大小
+     * @description 原来的切割方式：先把整个视频转成index.ts，再切割index.ts，最后删除index.ts
+     */
+    private static long legacySegment(File video, File folder, String fileId) throws IOException, InterruptedException {
+        resetFolder(folder);
+        File tsFile = new File(folder, "index.ts");
+        run(Arrays.asList(FFMPEG, "-y", "-i", video.getPath(), "-vcodec", "copy", "-acodec", "copy",
+                "-vbsf", "h264_mp4toannexb", tsFile.getPath()));
+        run(Arrays.asList(FFMPEG, "-i", tsFile.getPath(), "-c", "copy", "-map", "0", "-f", "segment",
+                "-segment_list", folder.getPath() + "/index.m3u8", "-segment_time", "30",
+                folder.getPath() + "/" + fileId + "_%4d.ts"));
+        long tsSize = tsFile.length();
+        tsFile.delete();
+        return tsSize;
+    }
+
+    /**
+     * @param video
+     * @param folder
+     * @param fileId
+     * @return void
+     * @description 现在的切割方式：与cutFile4Video相同，直接从原视频切割并生成索引文件
+     */
+    private static void singlePassSegment(File video, File folder, String fileId) throws IOException, InterruptedException {
+        resetFolder(folder);
+        run(Arrays.asList(FFMPEG, "-y", "-i", video.getPath(), "-c:v", "copy", "-c:a", "copy", "-sn", "-dn",
+                "-bsf:v", "h264_mp4toannexb", "-f", "segment", "-segment_format", "mpegts",
+                "-segment_list", folder.getPath() + "/index.m3u8", "-segment_list_type", "m3u8",
+                "-segment_time", "30", folder.getPath() + "/" + fileId + "_%4d.ts"));
+    }
+
+    private static File createSample(File workDir) throws IOException, InterruptedException {
+        File sample = new File(workDir, "sample.mp4");
+        run(Arrays.asList(FFMPEG, "-y", "-f", "lavfi", "-i", "testsrc2=size=1920x1080:rate=30", "-f", "lavfi", "-i", "sine=frequency=440",
+                "-t", String.valueOf(SAMPLE_SECONDS), "-c:v", "libx264", "-preset", "ultrafast", "-b:v", "8M", "-c:a", "aac",
+                "-shortest", sample.getPath()));
+        return sample;
+    }
+
+    private static void resetFolder(File folder) {
+        FileUtils.deleteQuietly(folder);
+        folder.mkdirs();
+    }
+
+    private static boolean isFfmpegAvailable() {
+        try {
+            run(Arrays.asList(FFMPEG, "-version"));
+            return true;
+        } catch (IOException | InterruptedException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param command
+     * @return void
+     * @description 执行命令并丢弃输出，退出码不为0时抛出异常
+     */
+    private static void run(List<String> command) throws IOException, InterruptedException {
+        List<String> fullCommand = new ArrayList<>(command);
+        if (fullCommand.size() > 2) {
+            fullCommand.addAll(1, Arrays.asList("-hide_banner", "-loglevel", "error"));
+        }
+        File nullFile = new File(System.getProperty("os.name").startsWith("Windows") ? "NUL" : "/dev/null");
+        Process process = new ProcessBuilder(fullCommand).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.appendTo(nullFile)).start();
+        if (!process.waitFor(2, TimeUnit.HOURS)) {
+            process.destroyForcibly();
+            throw new IOException("命令超时:" + command);
+        }
+        if (process.exitValue() != 0) {
+            throw new IOException("命令执行失败，退出码:" + process.exitValue() + "，命令:" + command);
+        }
+    }
+
+    private static double time(SegmentTask task) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        task.run();
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    private static double median(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private interface SegmentTask {
+        void run() throws IOException, InterruptedException;
+    }
+}
@@ -0,0 +1,150 @@
+package com.skybox.benchmark;
+
+import com.skybox.service.impl.FileInfoServiceImpl;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * @Project: SkyBox-BE
+ * @Package: com.skybox.benchmark
+ * @ClassName: UnionBenchmark
+ * @Datetime: 2024/01/25 10:10
+ * @Author: HuangRongQuan
+ * @Email: rongquanhuang01@gmail.com
+ * @Description: 对比分片合并的吞吐量：原来10KB字节数组循环读写与现在FileInfoServiceImpl.union使用的FileChannel.transferTo。
+ * 参数依次为：文件大小（MB，逗号分隔，默认100,1024，5GB可传5120）、分片大小（MB，默认5）、轮数（默认3）、工作目录（默认系统临时目录）。
+ * 分片数据只生成一次，各轮都在页缓存较热的情况下执行，结果取各轮的中位数
+ */
+
+public class UnionBenchmark {
+
+    private static final long MB = 1024 * 1024L;
+
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws IOException {
+        long[] sizeMbs = Arrays.stream((args.length > 0 ? args[0] : "100,1024").split(",")).mapToLong(Long::parseLong).toArray();
+        long chunkSize = (args.length > 1 ? Long.parseLong(args[1]) : 5) * MB;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        File workDir = new File(args.length > 3 ? args[3] : System.getProperty("java.io.tmpdir"), "skybox-union-benchmark");
+        System.out.printf("分片大小:%dMB，轮数:%d，工作目录:%s%n", chunkSize / MB, rounds, workDir);
+        System.out.printf("%-10s %-14s %12s %12s %12s%n", "文件大小", "实现", "耗时(s)", "吞吐(MB/s)", "CPU(s)");
+        try {
+            for (long sizeMb : sizeMbs) {
+                File chunkDir = new File(workDir, sizeMb + "MB");
+                long expectedSize = createChunks(chunkDir, sizeMb * MB, chunkSize);
+                int chunks = (int) ((expectedSize + chunkSize - 1) / chunkSize);
+                File target = new File(workDir, sizeMb + "MB.target");
+                double[][] legacy = new double[rounds][];
+                double[][] current = new double[rounds][];
+                for (int i = 0; i < rounds; i++) {
+                    legacy[i] = measure(() -> legacyUnion(chunkDir, target), target, expectedSize);
+                    current[i] = measure(() -> FileInfoServiceImpl.union(chunkDir.getPath(), target.getPath(), target.getName(), chunks, expectedSize, false),
+                            target, expectedSize);
+                }
+                print(sizeMb, "byte[] 10KB", legacy);
+                print(sizeMb, "transferTo", current);
+                FileUtils.deleteQuietly(chunkDir);
+            }
+        } finally {
+            FileUtils.deleteQuietly(workDir);
+        }
+    }
+
+    /**
+     * @param chunkDir
+     * @param totalSize
+     * @param chunkSize
+     * @return long
+     * @description 按上传时的命名规则生成0..n-1的分片文件，内容为随机数据
+     */
+    private static long createChunks(File chunkDir, long totalSize, long chunkSize) throws IOException {
+        FileUtils.deleteQuietly(chunkDir);
+        chunkDir.mkdirs();
+        byte[] bytes = new byte[(int) Math.min(chunkSize, 8 * MB)];
+        new Random(1).nextBytes(bytes);
+        long written = 0;
+        for (int index = 0; written < totalSize; index++) {
+            long length = Math.min(chunkSize, totalSize - written);
+            try (FileChannel channel = FileChannel.open(new File(chunkDir, String.valueOf(index)).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                long chunkWritten = 0;
+                while (chunkWritten < length) {
+                    ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, (int) Math.min(bytes.length, length - chunkWritten));
+                    while (buffer.hasRemaining()) {
+                        chunkWritten += channel.write(buffer);
+                    }
+                }
+            }
+            written += length;
+        }
+        return written;
+    }
+
+    /**
+     * @param chunkDir
+     * @param target
+     * @return void
+     * @description 原来的合并方式：RandomAccessFile加10KB字节数组逐段读写
+     */
+    private static void legacyUnion(File chunkDir, File target) throws IOException {
+        File[] fileList = chunkDir.listFiles();
+        try (RandomAccessFile writeFile = new RandomAccessFile(target, "rw")) {
+            byte[] b = new byte[1024 * 10];
+            for (int i = 0; i < fileList.length; i++) {
+                try (RandomAccessFile readFile = new RandomAccessFile(new File(chunkDir, String.valueOf(i)), "r")) {
+                    int len;
+                    while ((len = readFile.read(b)) != -1) {
+                        writeFile.write(b, 0, len);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param task
+     * @param target
+     * @param expectedSize
+     * @return double[] 耗时秒数和当前线程的CPU秒数
+     * @description 执行一次合并，合并前删除目标文件，合并后校验大小
+     */
+    private static double[] measure(UnionTask task, File target, long expectedSize) throws IOException {
+        Files.deleteIfExists(target.toPath());
+        long cpuStart = THREAD_MX_BEAN.getCurrentThreadCpuTime();
+        long start = System.nanoTime();
+        task.run();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double cpuSeconds = (THREAD_MX_BEAN.getCurrentThreadCpuTime() - cpuStart) / 1e9;
+        if (target.length() != expectedSize) {
+            throw new IllegalStateException("合并后大小不一致:" + target.length() + "，期望:" + expectedSize);
+        }
+        Files.delete(target.toPath());
+        return new double[]{seconds, cpuSeconds};
+    }
+
+    private static void print(long sizeMb, String name, double[][] results) {
+        double seconds = median(results, 0);
+        System.out.printf("%-10s %-14s %12.3f %12.1f %12.3f%n", sizeMb + "MB", name, seconds, sizeMb / seconds, median(results, 1));
+    }
+
+    private static double median(double[][] results, int column) {
+        double[] values = Arrays.stream(results).mapToDouble(result -> result[column]).sorted().toArray();
+        return values[values.length / 2];
+    }
+
+    private interface UnionTask {
+        void run() throws IOException;
+    }
+}